@@ -0,0 +1,76 @@
+package zyh.ml.bench;
+
+import java.io.File;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Random;
+
+import zyh.ml.regression.DistributedLogisticRegression;
+import zyh.ml.regression.DistributedTraining;
+import zyh.ml.utils.AllReduce;
+
+/**
+ * Measures how the throughput of {@link DistributedLogisticRegression} evaluations scales with
+ * the number of processes, on a {@link SyntheticDataset}. The processes run on this machine with the
+ * given threads each, so on one machine the processes times the threads should not exceed the
+ * processors.
+ * <p>
+ * Usage: DistributedBenchmark [rows] [features] [classes] [nonZerosPerRow] [maxProcesses]
+ * [threadsPerProcess] [evaluations]
+ */
+public class DistributedBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int numberOfRows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		final int numberOfFeatures = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		final int numberOfClasses = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+		final int nonZerosPerRow = (args.length > 3) ? Integer.parseInt(args[3]) : 40;
+		final int maxProcesses = (args.length > 4) ? Integer.parseInt(args[4]) : 4;
+		final int numberOfThreads = (args.length > 5) ? Integer.parseInt(args[5]) : 1;
+		final int evaluations = (args.length > 6) ? Integer.parseInt(args[6]) : 10;
+		final File dataset = File.createTempFile("distributed", ".dataset");
+
+		dataset.deleteOnExit();
+		new SyntheticDataset(numberOfRows, numberOfFeatures, numberOfClasses,
+				(double) nonZerosPerRow / (numberOfFeatures - 1)).write(dataset);
+
+		System.out.println(String.format("Rows = %d, Features = %d, Classes = %d, Non-zeros per row = %d, Threads = %d",
+				numberOfRows, numberOfFeatures, numberOfClasses, nonZerosPerRow, numberOfThreads));
+		System.out.println("Processes\tms per evaluation\trows per second\tspeedup\ttarget function");
+
+		final double[] arguments = new double[(numberOfClasses - 1) * numberOfFeatures];
+		final double[] gradient = new double[arguments.length];
+		final Random random = new Random(1);
+		double baseline = 0.0;
+
+		for (int i = 0; i < arguments.length; i++)
+			arguments[i] = 0.01 * random.nextGaussian();
+
+		for (int processes = 1; processes <= maxProcesses; processes *= 2) {
+			final ServerSocketChannel server = AllReduce.listen(0);
+			final List<Process> workers = DistributedTraining.launchWorkers(processes - 1, "127.0.0.1",
+					server.socket().getLocalPort(), dataset, numberOfThreads);
+			double result = 0.0;
+			double milliseconds;
+
+			try (DistributedLogisticRegression target = DistributedTraining.coordinate(server, processes, dataset,
+					numberOfClasses, numberOfFeatures, numberOfThreads)) {
+				/* Warm up before measuring */
+				for (int r = 0; r < 3; r++)
+					result = target.evaluate(arguments, gradient);
+
+				final long start = System.nanoTime();
+
+				for (int r = 0; r < evaluations; r++)
+					result = target.evaluate(arguments, gradient);
+				milliseconds = (System.nanoTime() - start) / 1e6 / evaluations;
+			}
+			DistributedTraining.waitFor(workers);
+
+			if (processes == 1)
+				baseline = milliseconds;
+			System.out.println(String.format("%d\t%.3f\t%.0f\t%.2fx\t%.6f", processes, milliseconds,
+					numberOfRows / milliseconds * 1000, baseline / milliseconds, result));
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package zyh.ml.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.indexer.IncrementalIndexer;
+import zyh.ml.indexer.Indexer;
+import zyh.ml.indexer.OnePassIndexer;
+
+/**
+ * Indexing of the named features of a {@link SyntheticDataset}: {@link Indexer#indexSample(Sample,
+ * int[], double[])} of one sample at a time on a built dictionary, and ingestion of all samples by
+ * an {@link IncrementalIndexer}, which builds the dictionary and the rows as the features come.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IndexerBenchmark {
+
+	@Param("100000")
+	public int numberOfSamples;
+
+	@Param("100000")
+	public int numberOfFeatures;
+
+	@Param("5")
+	public int numberOfClasses;
+
+	@Param("0.0004")
+	public double density;
+
+	private SyntheticDataset generator;
+
+	private SparseDataset dataset;
+
+	private List<Sample> samples;
+
+	private Indexer indexer;
+
+	private int[] featureIndices;
+
+	private double[] values;
+
+	private int row = 0;
+
+	@Setup
+	public void setUp() {
+		generator = new SyntheticDataset(numberOfSamples, numberOfFeatures, numberOfClasses, density);
+		dataset = generator.dataset();
+		samples = generator.samples(dataset);
+
+		final OnePassIndexer onePassIndexer = new OnePassIndexer();
+
+		onePassIndexer.setNumberOfThreads(1);
+		onePassIndexer.collectFeatures(samples, 0);
+		onePassIndexer.getEngine().shutdown();
+		indexer = onePassIndexer;
+		featureIndices = new int[generator.numberOfFeaturesPerRow()];
+		values = new double[featureIndices.length];
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int indexSample() {
+		if (++row == numberOfSamples)
+			row = 0;
+		return indexer.indexSample(samples.get(row), featureIndices, values);
+	}
+
+	/**
+	 * All samples, added feature by feature as a feature extractor would
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public IncrementalIndexer incrementalIndexer() {
+		final IncrementalIndexer incrementalIndexer = new IncrementalIndexer();
+
+		for (int i = 0; i < numberOfSamples; i++) {
+			incrementalIndexer.newSample();
+			generator.addRow(dataset, i, incrementalIndexer);
+			incrementalIndexer.addToSamples();
+		}
+
+		return incrementalIndexer;
+	}
+}
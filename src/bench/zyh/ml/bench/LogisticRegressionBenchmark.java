@@ -0,0 +1,95 @@
+package zyh.ml.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zyh.ml.data.SparseDataset;
+import zyh.ml.optimization.Optimizer;
+import zyh.ml.regression.LogisticRegression;
+import zyh.ml.utils.ParallelEngine;
+
+/**
+ * Full evaluations of the target function and gradient of {@link LogisticRegression}, as done once
+ * per l-BFGS iteration, on a {@link SyntheticDataset} with one thread and more.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LogisticRegressionBenchmark {
+
+	@Param({ "1", "2", "4" })
+	public int numberOfThreads;
+
+	@Param("100000")
+	public int numberOfSamples;
+
+	@Param("100000")
+	public int numberOfFeatures;
+
+	@Param("5")
+	public int numberOfClasses;
+
+	@Param("0.0004")
+	public double density;
+
+	private ParallelEngine engine;
+
+	private LogisticRegression logisticRegression;
+
+	private double[] arguments;
+
+	private double[] gradient;
+
+	@Setup
+	public void setUp() {
+		final SparseDataset dataset = new SyntheticDataset(numberOfSamples, numberOfFeatures, numberOfClasses,
+				density).dataset();
+		final double[] weights = new double[dataset.numberOfRows()];
+		final Random random = new Random(1);
+
+		Arrays.fill(weights, 1.0 / weights.length);
+		engine = new ParallelEngine(numberOfThreads);
+		logisticRegression = new LogisticRegression(numberOfClasses, numberOfFeatures);
+		logisticRegression.setEngine(engine);
+		logisticRegression.setUsingL2Regularization(true);
+
+		/* Attach the samples without optimizing */
+		logisticRegression.fit(dataset, weights, new Optimizer() {
+			@Override
+			public void run() {
+			}
+		});
+
+		arguments = new double[logisticRegression.numberOfArguments()];
+		gradient = new double[arguments.length];
+		for (int i = 0; i < arguments.length; i++)
+			arguments[i] = 0.01 * random.nextGaussian();
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.shutdown();
+	}
+
+	@Benchmark
+	public double evaluate() {
+		return logisticRegression.evaluate(arguments, gradient);
+	}
+}
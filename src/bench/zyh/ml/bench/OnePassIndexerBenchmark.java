@@ -0,0 +1,80 @@
+package zyh.ml.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zyh.ml.data.Sample;
+import zyh.ml.indexer.OnePassIndexer;
+import zyh.ml.utils.ParallelEngine;
+
+/**
+ * Counting and indexing the features of all samples of a {@link SyntheticDataset} with
+ * {@link OnePassIndexer#collectFeatures}, with one thread and more.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class OnePassIndexerBenchmark {
+
+	@Param({ "1", "2", "4" })
+	public int numberOfThreads;
+
+	@Param("100000")
+	public int numberOfSamples;
+
+	@Param("100000")
+	public int numberOfFeatures;
+
+	@Param("5")
+	public int numberOfClasses;
+
+	@Param("0.0004")
+	public double density;
+
+	@Param("2")
+	public int cutOff;
+
+	private ParallelEngine engine;
+
+	private List<Sample> samples;
+
+	@Setup
+	public void setUp() {
+		final SyntheticDataset generator = new SyntheticDataset(numberOfSamples, numberOfFeatures, numberOfClasses,
+				density);
+
+		samples = generator.samples(generator.dataset());
+		engine = new ParallelEngine(numberOfThreads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.shutdown();
+	}
+
+	@Benchmark
+	public int collectFeatures() {
+		final OnePassIndexer indexer = new OnePassIndexer();
+
+		indexer.setEngine(engine);
+		indexer.collectFeatures(samples, cutOff);
+
+		return indexer.numberOfFeatures();
+	}
+}
@@ -0,0 +1,115 @@
+package zyh.ml.bench;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.regression.LRModel;
+import zyh.ml.regression.LogisticRegression;
+import zyh.ml.utils.ParallelEngine;
+
+/**
+ * Prediction of one sample at a time, cycling through a {@link SyntheticDataset}:
+ * {@link LogisticRegression#probabilityPredict(int[], double[], int, double[], int)} on indexed
+ * rows, and {@link LRModel#predict(Sample)}, which also indexes the named features.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictionBenchmark {
+
+	@Param("10000")
+	public int numberOfSamples;
+
+	@Param("100000")
+	public int numberOfFeatures;
+
+	@Param("5")
+	public int numberOfClasses;
+
+	@Param("0.0004")
+	public double density;
+
+	private LogisticRegression logisticRegression;
+
+	private int[][] featureIndices;
+
+	private double[][] values;
+
+	private double[] probabilities;
+
+	private LRModel model;
+
+	private List<Sample> samples;
+
+	private int row = 0;
+
+	@Setup
+	public void setUp() {
+		final SyntheticDataset generator = new SyntheticDataset(numberOfSamples, numberOfFeatures, numberOfClasses,
+				density);
+		final SparseDataset dataset = generator.dataset();
+		final Random random = new Random(1);
+		final double[] arguments = new double[(numberOfClasses - 1) * numberOfFeatures];
+
+		for (int i = 0; i < arguments.length; i++)
+			arguments[i] = random.nextGaussian();
+		logisticRegression = new LogisticRegression(numberOfClasses, numberOfFeatures);
+		logisticRegression.updateArguments(arguments);
+
+		featureIndices = new int[numberOfSamples][];
+		values = new double[numberOfSamples][];
+		for (int i = 0; i < numberOfSamples; i++) {
+			featureIndices[i] = Arrays.copyOfRange(dataset.getFeatureIndices(), dataset.rowBegin(i), dataset.rowEnd(i));
+			values[i] = Arrays.copyOfRange(dataset.getValues(), dataset.rowBegin(i), dataset.rowEnd(i));
+		}
+		probabilities = new double[numberOfClasses];
+
+		/* A few iterations, prediction does not depend on how well the model fits */
+		final ParallelEngine engine = new ParallelEngine(1);
+
+		samples = generator.samples(dataset);
+		model = LRModel.train(samples, Collections.nCopies(numberOfSamples, 1.0 / numberOfSamples), 0, 3, engine);
+		model.discardTrainingData();
+		engine.shutdown();
+	}
+
+	@Benchmark
+	public double probabilityPredict() {
+		final int i = nextRow();
+
+		logisticRegression.probabilityPredict(featureIndices[i], values[i], featureIndices[i].length, probabilities, 0);
+
+		return probabilities[0];
+	}
+
+	@Benchmark
+	public String predict() {
+		return model.predict(samples.get(nextRow()));
+	}
+
+	private int nextRow() {
+		if (++row == numberOfSamples)
+			row = 0;
+		return row;
+	}
+}
@@ -0,0 +1,202 @@
+package zyh.ml.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import zyh.ml.data.Samplable;
+import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.data.SparseDatasetWriter;
+
+/**
+ * Random sparse datasets for benchmarks. Feature 0 is the bias, as written by the indexers, and
+ * every row has <i>density * (numberOfFeatures - 1)</i> other distinct features of value 1. The
+ * label of a row is the class with the largest sum of hidden weights over its features, so the
+ * dataset can be fitted. The same seed gives the same rows.
+ * <p>
+ * As {@link Sample}s, feature <i>i</i> is the binary feature <i>wi=1</i> and class <i>j</i> is the
+ * label <i>cj</i>.
+ */
+public class SyntheticDataset {
+
+	private interface Rows {
+		public void add(int[] featureIndices, double[] values, int length, int label) throws IOException;
+	}
+
+	private final int numberOfSamples;
+
+	private final int numberOfFeatures;
+
+	private final int numberOfClasses;
+
+	private final int nonZerosPerRow;
+
+	private long seed = 0;
+
+	private String[] featureNames = null;
+
+	private String[] labels = null;
+
+	/**
+	 * @param numberOfFeatures number of features including the bias
+	 * @param density fraction of the features other than the bias in every row
+	 */
+	public SyntheticDataset(int numberOfSamples, int numberOfFeatures, int numberOfClasses, double density) {
+		if (numberOfSamples < 0)
+			throw new IllegalArgumentException("Number of samples must not be negative.");
+		if (numberOfFeatures < 2)
+			throw new IllegalArgumentException("There must be a feature besides the bias.");
+		if (numberOfClasses < 2)
+			throw new IllegalArgumentException("There must be at least two classes.");
+		if (density <= 0.0 || density > 1.0)
+			throw new IllegalArgumentException("Density must be in (0, 1].");
+		this.numberOfSamples = numberOfSamples;
+		this.numberOfFeatures = numberOfFeatures;
+		this.numberOfClasses = numberOfClasses;
+		this.nonZerosPerRow = (int) Math.max(1, Math.min(numberOfFeatures - 1,
+				Math.round(density * (numberOfFeatures - 1))));
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public int numberOfSamples() {
+		return numberOfSamples;
+	}
+
+	public int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	public int numberOfClasses() {
+		return numberOfClasses;
+	}
+
+	/**
+	 * @return number of features of every row, including the bias
+	 */
+	public int numberOfFeaturesPerRow() {
+		return nonZerosPerRow + 1;
+	}
+
+	public SparseDataset dataset() {
+		final SparseDataset.Builder builder = new SparseDataset.Builder();
+
+		try {
+			generate(new Rows() {
+				@Override
+				public void add(int[] featureIndices, double[] values, int length, int label) {
+					for (int k = 0; k < length; k++)
+						builder.add(featureIndices[k], values[k]);
+					builder.endRow(label);
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Write the rows with a {@link SparseDatasetWriter}, without keeping them in memory
+	 */
+	public void write(File file) throws IOException {
+		try (SparseDatasetWriter writer = new SparseDatasetWriter(file)) {
+			generate(new Rows() {
+				@Override
+				public void add(int[] featureIndices, double[] values, int length, int label) throws IOException {
+					writer.addRow(featureIndices, values, 0, length, label);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the rows of the dataset as samples with named features
+	 */
+	public List<Sample> samples(SparseDataset dataset) {
+		List<Sample> samples = new ArrayList<>(dataset.numberOfRows());
+
+		for (int row = 0; row < dataset.numberOfRows(); row++) {
+			Sample sample = new Sample();
+
+			addRow(dataset, row, sample);
+			samples.add(sample);
+		}
+
+		return samples;
+	}
+
+	/**
+	 * Add the features other than the bias and the label of a row of the dataset to a sample or an
+	 * indexer, with names created once
+	 */
+	public void addRow(SparseDataset dataset, int row, Samplable sample) {
+		if (featureNames == null) {
+			featureNames = new String[numberOfFeatures];
+			for (int i = 0; i < numberOfFeatures; i++)
+				featureNames[i] = "w" + i;
+			labels = new String[numberOfClasses];
+			for (int j = 0; j < numberOfClasses; j++)
+				labels[j] = "c" + j;
+		}
+
+		final int[] featureIndices = dataset.getFeatureIndices();
+
+		for (int k = dataset.rowBegin(row); k < dataset.rowEnd(row); k++) {
+			if (featureIndices[k] != 0)
+				sample.addBinaryFeature(featureNames[featureIndices[k]], "1");
+		}
+		sample.setLabel(labels[dataset.label(row)]);
+	}
+
+	private void generate(Rows rows) throws IOException {
+		final Random random = new Random(seed);
+		final double[] hiddenWeights = new double[numberOfClasses * numberOfFeatures];
+		final int[] featureIndices = new int[nonZerosPerRow + 1];
+		final double[] values = new double[nonZerosPerRow + 1];
+		final boolean[] chosen = new boolean[numberOfFeatures];
+		final double[] scores = new double[numberOfClasses];
+
+		for (int i = 0; i < hiddenWeights.length; i++)
+			hiddenWeights[i] = random.nextGaussian();
+		Arrays.fill(values, 1.0);
+
+		for (int row = 0; row < numberOfSamples; row++) {
+			/* Floyd's sampling of distinct features from 1 to numberOfFeatures - 1 */
+			int length = 0;
+
+			featureIndices[length++] = 0;
+			for (int bound = numberOfFeatures - nonZerosPerRow; bound < numberOfFeatures; bound++) {
+				int index = 1 + random.nextInt(bound);
+
+				if (chosen[index])
+					index = bound;
+				chosen[index] = true;
+				featureIndices[length++] = index;
+			}
+			Arrays.sort(featureIndices, 1, length);
+
+			Arrays.fill(scores, 0.0);
+			for (int k = 0; k < length; k++) {
+				chosen[featureIndices[k]] = false;
+				for (int j = 0; j < numberOfClasses; j++)
+					scores[j] += hiddenWeights[j * numberOfFeatures + featureIndices[k]];
+			}
+
+			int label = 0;
+
+			for (int j = 1; j < numberOfClasses; j++) {
+				if (scores[j] > scores[label])
+					label = j;
+			}
+			rows.add(featureIndices, values, length, label);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package zyh.ml.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import zyh.ml.utils.VectorMath;
+
+/**
+ * Compares the {@link VectorMath} kernels with the plain loops they replace, on the
+ * two-loop recursion of L-BFGS. Run with and without
+ * <code>-jvmArgsAppend --add-modules=jdk.incubator.vector</code> to compare the Vector API
+ * kernels with the scalar ones, the implementation in use is printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VectorMathBenchmark {
+
+	@Param("1000000")
+	public int numberOfArguments;
+
+	@Param("10")
+	public int historySize;
+
+	private double[][] argumentDiffs;
+
+	private double[][] gradientDiffs;
+
+	private double[] inversedRhos;
+
+	private double[] alphas;
+
+	private double[] gradient;
+
+	private double[] direction;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(0);
+
+		argumentDiffs = new double[historySize][numberOfArguments];
+		gradientDiffs = new double[historySize][numberOfArguments];
+		inversedRhos = new double[historySize];
+		alphas = new double[historySize];
+		gradient = new double[numberOfArguments];
+		direction = new double[numberOfArguments];
+
+		for (int k = 0; k < historySize; k++) {
+			for (int i = 0; i < numberOfArguments; i++) {
+				argumentDiffs[k][i] = random.nextGaussian();
+				gradientDiffs[k][i] = argumentDiffs[k][i] + 0.1 * random.nextGaussian();
+			}
+			inversedRhos[k] = 1.0 / VectorMath.dot(argumentDiffs[k], gradientDiffs[k]);
+		}
+		for (int i = 0; i < numberOfArguments; i++)
+			gradient[i] = random.nextGaussian();
+
+		System.out.println(String.format("VectorMath implementation: %s", VectorMath.implementation()));
+	}
+
+	@Benchmark
+	public double plainLoops() {
+		return plainTwoLoop(argumentDiffs, gradientDiffs, inversedRhos, alphas, gradient, direction);
+	}
+
+	@Benchmark
+	public double vectorMath() {
+		return kernelTwoLoop(argumentDiffs, gradientDiffs, inversedRhos, alphas, gradient, direction);
+	}
+
+	/**
+	 * Two-loop recursion with separate passes for every dot product and update
+	 */
+	private static double plainTwoLoop(double[][] argumentDiffs, double[][] gradientDiffs, double[] inversedRhos,
+			double[] alphas, double[] gradient, double[] direction) {
+		final int m = argumentDiffs.length;
+		final int n = gradient.length;
+
+		System.arraycopy(gradient, 0, direction, 0, n);
+
+		for (int k = m - 1; k >= 0; k--) {
+			double alpha = 0.0;
+
+			for (int j = 0; j < n; j++)
+				alpha += inversedRhos[k] * argumentDiffs[k][j] * direction[j];
+			for (int j = 0; j < n; j++)
+				direction[j] -= alpha * gradientDiffs[k][j];
+			alphas[k] = alpha;
+		}
+
+		for (int k = 0; k < m; k++) {
+			double beta = 0.0;
+
+			for (int j = 0; j < n; j++)
+				beta += inversedRhos[k] * gradientDiffs[k][j] * direction[j];
+			for (int j = 0; j < n; j++)
+				direction[j] += (alphas[k] - beta) * argumentDiffs[k][j];
+		}
+
+		return direction[0];
+	}
+
+	/**
+	 * The same recursion on fused kernels, as in the L-BFGS history
+	 */
+	private static double kernelTwoLoop(double[][] argumentDiffs, double[][] gradientDiffs, double[] inversedRhos,
+			double[] alphas, double[] gradient, double[] direction) {
+		final int m = argumentDiffs.length;
+
+		System.arraycopy(gradient, 0, direction, 0, gradient.length);
+
+		double product = VectorMath.dot(argumentDiffs[m - 1], direction);
+
+		for (int k = m - 1; k >= 0; k--) {
+			alphas[k] = inversedRhos[k] * product;
+			if (k > 0)
+				product = VectorMath.axpyDot(-alphas[k], gradientDiffs[k], direction, argumentDiffs[k - 1]);
+			else
+				VectorMath.axpy(-alphas[k], gradientDiffs[k], direction);
+		}
+
+		product = VectorMath.dot(gradientDiffs[0], direction);
+		for (int k = 0; k < m; k++) {
+			final double coefficient = alphas[k] - inversedRhos[k] * product;
+
+			if (k + 1 < m)
+				product = VectorMath.axpyDot(coefficient, argumentDiffs[k], direction, gradientDiffs[k + 1]);
+			else
+				VectorMath.axpy(coefficient, argumentDiffs[k], direction);
+		}
+
+		return direction[0];
+	}
+}
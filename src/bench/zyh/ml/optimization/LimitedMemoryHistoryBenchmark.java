@@ -0,0 +1,73 @@
+package zyh.ml.optimization;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The two-loop recursion of l-BFGS, {@link LimitedMemoryHistory#inverseHessianMultiply}, with a
+ * full history of random pairs. In the package of the history, which is not public.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LimitedMemoryHistoryBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int numberOfArguments;
+
+	@Param({ "5", "10" })
+	public int historySize;
+
+	private LimitedMemoryHistory history;
+
+	private double[] gradient;
+
+	private double[] direction;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(0);
+		final double[] arguments = new double[numberOfArguments];
+		final double[] newArguments = new double[numberOfArguments];
+		final double[] newGradient = new double[numberOfArguments];
+
+		history = new LimitedMemoryHistory(historySize, numberOfArguments);
+		gradient = new double[numberOfArguments];
+		direction = new double[numberOfArguments];
+
+		/* Pairs with y close to s have positive curvature */
+		while (history.size() < historySize) {
+			for (int i = 0; i < numberOfArguments; i++) {
+				final double step = random.nextGaussian();
+
+				arguments[i] = random.nextGaussian();
+				newArguments[i] = arguments[i] + step;
+				gradient[i] = random.nextGaussian();
+				newGradient[i] = gradient[i] + step + 0.1 * random.nextGaussian();
+			}
+			history.add(arguments, newArguments, gradient, newGradient);
+		}
+	}
+
+	@Benchmark
+	public double inverseHessianMultiply() {
+		history.inverseHessianMultiply(gradient, direction);
+
+		return direction[0];
+	}
+}
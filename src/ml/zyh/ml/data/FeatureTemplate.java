@@ -0,0 +1,55 @@
+package zyh.ml.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Handle of a feature name, interned once so that feature values can be added to a
+ * {@link Samplable} without building <i>name=value</i> strings. Implementations keep per-template
+ * tables indexed by {@link #id()}.
+ */
+public final class FeatureTemplate {
+
+	private static final ConcurrentMap<String, FeatureTemplate> templates = new ConcurrentHashMap<>();
+
+	private final String name;
+
+	private final int id;
+
+	private FeatureTemplate(String name, int id) {
+		this.name = name;
+		this.id = id;
+	}
+
+	/**
+	 * @return the template of the name, the same handle for the same name
+	 */
+	public static FeatureTemplate of(String name) {
+		final FeatureTemplate template = templates.get(name);
+
+		if (template != null)
+			return template;
+
+		synchronized (templates) {
+			if (!templates.containsKey(name))
+				templates.put(name, new FeatureTemplate(name, templates.size()));
+			return templates.get(name);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return a small index unique to the name, from 0 to the number of templates - 1
+	 */
+	public int id() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
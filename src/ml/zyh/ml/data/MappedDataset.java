@@ -0,0 +1,247 @@
+package zyh.ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Rows stored on disk in the format of {@link SparseDataset#write(zyh.ml.utils.BinaryOutput)}, read
+ * through memory-mapped segments. Blocks of rows are copied into per-thread scratch arrays before
+ * use, so only the blocks being processed and what the operating system caches take memory. The file
+ * stays mapped until the dataset is garbage collected.
+ */
+public class MappedDataset implements SparseRows {
+
+	private static final int HEADER_SIZE = 24;
+
+	/* Segments are multiples of 8 bytes, so no value crosses a segment boundary */
+	private static final int SEGMENT_SHIFT = 30;
+
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	/* Upper bound of the non-zero features copied into one block */
+	private static final int MAXIMUM_BLOCK_NON_ZEROS = 1 << 18;
+
+	private final MappedByteBuffer[] segments;
+
+	private final int numberOfRows;
+
+	private final long numberOfNonZeros;
+
+	private final long rowOffsetsPosition;
+
+	private final long labelsPosition;
+
+	private final long featureIndicesPosition;
+
+	private final long valuesPosition;
+
+	/* New feature indices applied to the copied blocks, -1 drops a feature, null keeps them all */
+	private final int[] indexMap;
+
+	private MappedDataset(MappedByteBuffer[] segments) throws IOException {
+		this.segments = segments;
+
+		final ByteBuffer header = segments[0];
+
+		if (header.capacity() < HEADER_SIZE || header.getInt(0) != SparseDataset.MAGIC)
+			throw new IOException("Not a sparse dataset.");
+		if (header.getInt(4) != SparseDataset.VERSION)
+			throw new IOException(String.format("Unsupported sparse dataset version %d.", header.getInt(4)));
+
+		numberOfRows = header.getInt(8);
+		numberOfNonZeros = header.getLong(16);
+		rowOffsetsPosition = HEADER_SIZE;
+		labelsPosition = rowOffsetsPosition + 8L * (numberOfRows + 1);
+		featureIndicesPosition = align(labelsPosition + 4L * numberOfRows);
+		valuesPosition = align(featureIndicesPosition + 4L * numberOfNonZeros);
+
+		final long size = (segments.length - 1) * SEGMENT_SIZE + segments[segments.length - 1].capacity();
+
+		if (valuesPosition + 8 * numberOfNonZeros > size)
+			throw new IOException("Sparse dataset is truncated.");
+		indexMap = null;
+	}
+
+	private MappedDataset(MappedDataset dataset, int[] indexMap) {
+		segments = dataset.segments;
+		numberOfRows = dataset.numberOfRows;
+		numberOfNonZeros = dataset.numberOfNonZeros;
+		rowOffsetsPosition = dataset.rowOffsetsPosition;
+		labelsPosition = dataset.labelsPosition;
+		featureIndicesPosition = dataset.featureIndicesPosition;
+		valuesPosition = dataset.valuesPosition;
+		this.indexMap = indexMap;
+	}
+
+	public static MappedDataset open(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			final FileChannel channel = randomAccessFile.getChannel();
+			final long size = channel.size();
+			final int numberOfSegments = (int) Math.max(1, (size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			MappedByteBuffer[] segments = new MappedByteBuffer[numberOfSegments];
+
+			for (int i = 0; i < numberOfSegments; i++) {
+				final long position = i * SEGMENT_SIZE;
+
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(SEGMENT_SIZE, size - position));
+				segments[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			return new MappedDataset(segments);
+		}
+	}
+
+	/**
+	 * View the rows with every feature index replaced by its new index, dropping features mapped
+	 * to -1, without rewriting the file. Features beyond the map are kept as they are. Row offsets
+	 * still count the features in the file.
+	 */
+	public MappedDataset remapFeatures(int[] indexMap) {
+		if (this.indexMap == null)
+			return new MappedDataset(this, indexMap.clone());
+
+		int[] composedMap = new int[Math.max(this.indexMap.length, indexMap.length)];
+
+		for (int i = 0; i < composedMap.length; i++) {
+			final int index = (i < this.indexMap.length) ? this.indexMap[i] : i;
+
+			composedMap[i] = (index < 0 || index >= indexMap.length) ? index : indexMap[index];
+		}
+
+		return new MappedDataset(this, composedMap);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	@Override
+	public int numberOfRows() {
+		return numberOfRows;
+	}
+
+	public long numberOfNonZeros() {
+		return numberOfNonZeros;
+	}
+
+	@Override
+	public long rowOffset(int row) {
+		final long position = rowOffsetsPosition + 8L * row;
+
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & (SEGMENT_SIZE - 1)));
+	}
+
+	public int label(int row) {
+		final long position = labelsPosition + 4L * row;
+
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & (SEGMENT_SIZE - 1)));
+	}
+
+	/**
+	 * Copy rows from begin on into the scratch block, as many as fit into one block but at least one
+	 */
+	@Override
+	public Block rows(int begin, int end, Block scratch) {
+		final long firstOffset = rowOffset(begin);
+		int blockEnd = begin + 1;
+
+		/* The last row whose end is within the limit of the block */
+		if (end > blockEnd) {
+			int low = blockEnd;
+			int high = end;
+
+			while (low < high) {
+				final int middle = (low + high + 1) >>> 1;
+
+				if (rowOffset(middle) - firstOffset <= MAXIMUM_BLOCK_NON_ZEROS)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+			blockEnd = low;
+		}
+
+		final int rows = blockEnd - begin;
+		final int nonZeros = (int) (rowOffset(blockEnd) - firstOffset);
+
+		if (scratch.rowOffsets == null || scratch.rowOffsets.length < rows + 1 || scratch.labels.length < rows) {
+			scratch.rowOffsets = new int[Math.max(rows + 1, 1024)];
+			scratch.labels = new int[Math.max(rows, 1024)];
+		}
+		if (scratch.featureIndices == null || scratch.featureIndices.length < nonZeros) {
+			scratch.featureIndices = new int[Math.max(nonZeros, MAXIMUM_BLOCK_NON_ZEROS)];
+			scratch.values = new double[scratch.featureIndices.length];
+		}
+
+		for (int i = 0; i <= rows; i++)
+			scratch.rowOffsets[i] = (int) (rowOffset(begin + i) - firstOffset);
+		readInts(labelsPosition + 4L * begin, scratch.labels, rows);
+		readInts(featureIndicesPosition + 4L * firstOffset, scratch.featureIndices, nonZeros);
+		readDoubles(valuesPosition + 8L * firstOffset, scratch.values, nonZeros);
+		if (indexMap != null)
+			remapBlock(scratch, rows);
+		scratch.firstRow = begin;
+		scratch.endRow = blockEnd;
+
+		return scratch;
+	}
+
+	private void remapBlock(Block block, int rows) {
+		final int[] featureIndices = block.featureIndices;
+		final double[] values = block.values;
+		int position = 0;
+		int k = 0;
+
+		for (int i = 0; i < rows; i++) {
+			final int end = block.rowOffsets[i + 1];
+
+			for (; k < end; k++) {
+				final int featureIndex = featureIndices[k];
+				final int newIndex = (featureIndex < indexMap.length) ? indexMap[featureIndex] : featureIndex;
+
+				if (newIndex < 0)
+					continue;
+				featureIndices[position] = newIndex;
+				values[position] = values[k];
+				position++;
+			}
+			block.rowOffsets[i + 1] = position;
+		}
+	}
+
+	private void readInts(long position, int[] destination, int length) {
+		int offset = 0;
+
+		while (offset < length) {
+			final ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+			final int start = (int) (position & (SEGMENT_SIZE - 1));
+			final int count = Math.min(length - offset, (segment.capacity() - start) / 4);
+
+			segment.position(start);
+			segment.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(destination, offset, count);
+			offset += count;
+			position += 4L * count;
+		}
+	}
+
+	private void readDoubles(long position, double[] destination, int length) {
+		int offset = 0;
+
+		while (offset < length) {
+			final ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+			final int start = (int) (position & (SEGMENT_SIZE - 1));
+			final int count = Math.min(length - offset, (segment.capacity() - start) / 8);
+
+			segment.position(start);
+			segment.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(destination, offset, count);
+			offset += count;
+			position += 8L * count;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package zyh.ml.data;
+
+/**
+ * Consecutive rows of other rows, as rows of their own, without copying them. Used to split a
+ * dataset into parts for several processes.
+ */
+public class RowRange implements SparseRows {
+
+	private final SparseRows rows;
+
+	private final int begin;
+
+	private final int end;
+
+	private final long firstOffset;
+
+	/**
+	 * View rows begin to end - 1 of the rows as rows 0 to end - begin - 1
+	 */
+	public RowRange(SparseRows rows, int begin, int end) {
+		if (begin < 0 || end < begin || end > rows.numberOfRows())
+			throw new IndexOutOfBoundsException(String.format("Rows %d to %d of %d.", begin, end, rows.numberOfRows()));
+		this.rows = rows;
+		this.begin = begin;
+		this.end = end;
+		this.firstOffset = rows.rowOffset(begin);
+	}
+
+	@Override
+	public int numberOfRows() {
+		return end - begin;
+	}
+
+	@Override
+	public long rowOffset(int row) {
+		return rows.rowOffset(begin + row) - firstOffset;
+	}
+
+	@Override
+	public Block rows(int begin, int end, Block scratch) {
+		final Block block = rows.rows(this.begin + begin, this.begin + end, scratch);
+
+		block.firstRow -= this.begin;
+		block.endRow = Math.min(block.endRow - this.begin, numberOfRows());
+
+		return block;
+	}
+}
@@ -6,5 +6,13 @@ public interface Samplable {
 
 	public void addDecimalFeature(String name, double value);
 
+	/**
+	 * Same as {@link #addBinaryFeature(String, String)} with the name of the template, the value
+	 * is copied only if it has not been seen before
+	 */
+	public void addBinaryFeature(FeatureTemplate template, CharSequence value);
+
+	public void addDecimalFeature(FeatureTemplate template, double value);
+
 	public void setLabel(String label);
 }
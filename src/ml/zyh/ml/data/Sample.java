@@ -3,6 +3,7 @@ package zyh.ml.data;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 public class Sample implements Samplable {
@@ -11,7 +12,8 @@ public class Sample implements Samplable {
 
 	private Map<String, String> binaryFeatureMap = new HashMap<>();
 
-	private Set<String> binaryFeatures = new HashSet<>();
+	/* Built from binaryFeatureMap when first asked for after a change, published safely to other threads */
+	private volatile Set<String> binaryFeatures = null;
 
 	private Map<String, Double> decimalFeatures = new HashMap<>();
 
@@ -19,12 +21,8 @@ public class Sample implements Samplable {
 
 	@Override
 	public void addBinaryFeature(String name, String value) {
-		if (binaryFeatureMap.containsKey(name)) {
-			final String oldFeature = String.format("%s%s%s", name, SEPARATOR, binaryFeatureMap.get(name));
-			binaryFeatures.remove(oldFeature);
-		}
 		binaryFeatureMap.put(name, value);
-		binaryFeatures.add(String.format("%s%s%s", name, SEPARATOR, value));
+		binaryFeatures = null;
 	}
 
 	@Override
@@ -32,8 +30,34 @@ public class Sample implements Samplable {
 		decimalFeatures.put(name, value);
 	}
 
+	/**
+	 * Unlike the indexers, a sample keeps the value, so a string of it is built on every call. Only
+	 * the name is shared, and <i>name=value</i> strings are built when first asked for. Feed the
+	 * indexers directly for ingestion without allocation.
+	 */
+	@Override
+	public void addBinaryFeature(FeatureTemplate template, CharSequence value) {
+		addBinaryFeature(template.getName(), value.toString());
+	}
+
+	@Override
+	public void addDecimalFeature(FeatureTemplate template, double value) {
+		decimalFeatures.put(template.getName(), value);
+	}
+
+	/**
+	 * @return binary features as <i>name=value</i> strings, one value per name
+	 */
 	public Set<String> getBinaryFeatures() {
-		return binaryFeatures;
+		Set<String> features = binaryFeatures;
+
+		if (features == null) {
+			features = new HashSet<>(Math.max(16, binaryFeatureMap.size() * 4 / 3 + 1));
+			for (final Entry<String, String> entry : binaryFeatureMap.entrySet())
+				features.add(entry.getKey() + SEPARATOR + entry.getValue());
+			binaryFeatures = features;
+		}
+		return features;
 	}
 
 	public Map<String, Double> getDecimalFeatures() {
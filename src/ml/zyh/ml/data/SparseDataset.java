@@ -0,0 +1,424 @@
+package zyh.ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import zyh.ml.utils.BinaryInput;
+import zyh.ml.utils.BinaryOutput;
+
+/**
+ * Indexed samples stored in compressed sparse row (CSR) format. The features of row <i>i</i>
+ * are stored in <code>featureIndices</code> and <code>values</code> between
+ * <code>rowOffsets[i]</code> (inclusive) and <code>rowOffsets[i + 1]</code> (exclusive).
+ */
+public class SparseDataset implements SparseRows, Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 4410723405367414237L;
+
+	/* Shared with SparseDatasetWriter and MappedDataset */
+
+	static final int MAGIC = 0x5344535A;
+
+	static final int VERSION = 1;
+
+	/* Largest array the virtual machines allocate */
+	private static final int MAXIMUM_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private int numberOfRows;
+
+	private int[] rowOffsets;
+
+	private int[] featureIndices;
+
+	private double[] values;
+
+	private int[] labels;
+
+	public SparseDataset(int[] rowOffsets, int[] featureIndices, double[] values, int[] labels) {
+		if (rowOffsets.length != labels.length + 1)
+			throw new IllegalArgumentException("Row offsets and labels don't match.");
+		if (featureIndices.length < rowOffsets[labels.length] || values.length < rowOffsets[labels.length])
+			throw new IllegalArgumentException("Not enough feature indices or values.");
+		this.numberOfRows = labels.length;
+		this.rowOffsets = rowOffsets;
+		this.featureIndices = featureIndices;
+		this.values = values;
+		this.labels = labels;
+	}
+
+	@Override
+	public int numberOfRows() {
+		return numberOfRows;
+	}
+
+	public int numberOfNonZeros() {
+		return rowOffsets[numberOfRows];
+	}
+
+	public int[] getRowOffsets() {
+		return rowOffsets;
+	}
+
+	public int[] getFeatureIndices() {
+		return featureIndices;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public int[] getLabels() {
+		return labels;
+	}
+
+	@Override
+	public long rowOffset(int row) {
+		return rowOffsets[row];
+	}
+
+	/**
+	 * All rows are in memory, so the scratch block is pointed at the arrays of the dataset
+	 */
+	@Override
+	public Block rows(int begin, int end, Block scratch) {
+		scratch.firstRow = 0;
+		scratch.endRow = numberOfRows;
+		scratch.rowOffsets = rowOffsets;
+		scratch.featureIndices = featureIndices;
+		scratch.values = values;
+		scratch.labels = labels;
+		return scratch;
+	}
+
+	public int rowBegin(int row) {
+		return rowOffsets[row];
+	}
+
+	public int rowEnd(int row) {
+		return rowOffsets[row + 1];
+	}
+
+	public int label(int row) {
+		return labels[row];
+	}
+
+	public IndexedSample getIndexedSample(int row) {
+		IndexedSample indexedSample = new IndexedSample();
+
+		for (int k = rowOffsets[row]; k < rowOffsets[row + 1]; k++)
+			indexedSample.features.put(featureIndices[k], values[k]);
+		indexedSample.label = labels[row];
+
+		return indexedSample;
+	}
+
+	public List<IndexedSample> toIndexedSamples() {
+		List<IndexedSample> indexedSamples = new ArrayList<>(numberOfRows);
+
+		for (int i = 0; i < numberOfRows; i++)
+			indexedSamples.add(getIndexedSample(i));
+
+		return indexedSamples;
+	}
+
+	public static SparseDataset fromIndexedSamples(List<IndexedSample> indexedSamples) {
+		Builder builder = new Builder();
+
+		for (final IndexedSample indexedSample : indexedSamples) {
+			for (final Entry<Integer, Double> entry : indexedSample.features.entrySet())
+				builder.add(entry.getKey(), entry.getValue());
+			builder.endRow(indexedSample.label);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Concatenate the rows of the given datasets in order
+	 * @param datasets datasets to be concatenated
+	 * @return a new dataset holding all rows
+	 */
+	public static SparseDataset concatenate(List<SparseDataset> datasets) {
+		long totalRows = 0;
+		long totalNonZeros = 0;
+
+		for (final SparseDataset dataset : datasets) {
+			totalRows += dataset.numberOfRows();
+			totalNonZeros += dataset.numberOfNonZeros();
+		}
+
+		if (totalRows >= MAXIMUM_ARRAY_LENGTH || totalNonZeros > MAXIMUM_ARRAY_LENGTH)
+			throw new IllegalArgumentException(String.format(
+					"%d rows with %d non-zero features don't fit in memory, use a MappedDataset.", totalRows,
+					totalNonZeros));
+
+		int[] rowOffsets = new int[(int) totalRows + 1];
+		int[] featureIndices = new int[(int) totalNonZeros];
+		double[] values = new double[(int) totalNonZeros];
+		int[] labels = new int[(int) totalRows];
+		int row = 0;
+		int offset = 0;
+
+		for (final SparseDataset dataset : datasets) {
+			final int nonZeros = dataset.numberOfNonZeros();
+
+			for (int i = 0; i < dataset.numberOfRows(); i++)
+				rowOffsets[row + i + 1] = offset + dataset.rowOffsets[i + 1];
+			System.arraycopy(dataset.featureIndices, 0, featureIndices, offset, nonZeros);
+			System.arraycopy(dataset.values, 0, values, offset, nonZeros);
+			System.arraycopy(dataset.labels, 0, labels, row, dataset.numberOfRows());
+
+			row += dataset.numberOfRows();
+			offset += nonZeros;
+		}
+
+		return new SparseDataset(rowOffsets, featureIndices, values, labels);
+	}
+
+	/**
+	 * Write the dataset in a versioned binary format, little endian with every section aligned
+	 * to 8 bytes so that it can also be mapped:
+	 * <pre>
+	 * header        magic, version, numberOfRows, 0, numberOfNonZeros (long)
+	 * rowOffsets    numberOfRows + 1 longs
+	 * labels        numberOfRows ints
+	 * features      numberOfNonZeros ints
+	 * values        numberOfNonZeros doubles
+	 * </pre>
+	 */
+	public void write(BinaryOutput output) throws IOException {
+		final int nonZeros = numberOfNonZeros();
+
+		output.align(8);
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeInt(numberOfRows);
+		output.writeInt(0);
+		output.writeLong(nonZeros);
+
+		for (int i = 0; i <= numberOfRows; i++)
+			output.writeLong(rowOffsets[i]);
+		output.writeInts(labels, 0, numberOfRows);
+		output.align(8);
+		output.writeInts(featureIndices, 0, nonZeros);
+		output.align(8);
+		output.writeDoubles(values, 0, nonZeros);
+	}
+
+	/**
+	 * Read a dataset written by {@link #write(BinaryOutput)}
+	 */
+	public static SparseDataset read(BinaryInput input) throws IOException {
+		input.align(8);
+		if (input.readInt() != MAGIC)
+			throw new IOException("Not a sparse dataset.");
+
+		final int version = input.readInt();
+
+		if (version != VERSION)
+			throw new IOException(String.format("Unsupported sparse dataset version %d.", version));
+
+		final int numberOfRows = input.readInt();
+
+		input.readInt();
+
+		final long nonZeros = input.readLong();
+
+		if (nonZeros > Integer.MAX_VALUE)
+			throw new IOException("Too many non-zero features to be loaded into memory.");
+
+		long[] longOffsets = new long[numberOfRows + 1];
+		int[] rowOffsets = new int[numberOfRows + 1];
+		int[] labels = new int[numberOfRows];
+		int[] featureIndices = new int[(int) nonZeros];
+		double[] values = new double[(int) nonZeros];
+
+		input.readLongs(longOffsets, 0, numberOfRows + 1);
+		for (int i = 0; i <= numberOfRows; i++)
+			rowOffsets[i] = (int) longOffsets[i];
+		input.readInts(labels, 0, numberOfRows);
+		input.align(8);
+		input.readInts(featureIndices, 0, featureIndices.length);
+		input.align(8);
+		input.readDoubles(values, 0, values.length);
+
+		return new SparseDataset(rowOffsets, featureIndices, values, labels);
+	}
+
+	public void save(File file) throws IOException {
+		try (BinaryOutput output = new BinaryOutput(file)) {
+			write(output);
+		}
+	}
+
+	public static SparseDataset load(File file) throws IOException {
+		try (BinaryInput input = new BinaryInput(file)) {
+			return read(input);
+		}
+	}
+
+	/**
+	 * Appends rows one feature at a time. Features added after the last call to
+	 * {@link #endRow(int)} belong to the row currently being built.
+	 */
+	public static class Builder implements Serializable {
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = -2263095307417962518L;
+
+		private int numberOfRows = 0;
+
+		private int[] rowOffsets = new int[16];
+
+		private int[] featureIndices = new int[64];
+
+		private double[] values = new double[64];
+
+		private int[] labels = new int[16];
+
+		private int size = 0;
+
+		public Builder() {
+		}
+
+		/**
+		 * Start with the rows of the given dataset
+		 */
+		public Builder(SparseDataset dataset) {
+			final int nonZeros = dataset.numberOfNonZeros();
+
+			numberOfRows = dataset.numberOfRows;
+			rowOffsets = Arrays.copyOf(dataset.rowOffsets, Math.max(16, grow(numberOfRows + 1)));
+			labels = Arrays.copyOf(dataset.labels, rowOffsets.length);
+			featureIndices = Arrays.copyOf(dataset.featureIndices, Math.max(64, grow(Math.max(nonZeros, 1))));
+			values = Arrays.copyOf(dataset.values, featureIndices.length);
+			size = nonZeros;
+		}
+
+		/**
+		 * Add a feature to the current row
+		 * @return position of the feature, which can be passed to {@link #set(int, double)}
+		 */
+		public int add(int featureIndex, double value) {
+			if (size == featureIndices.length) {
+				featureIndices = Arrays.copyOf(featureIndices, grow(size));
+				values = Arrays.copyOf(values, featureIndices.length);
+			}
+			featureIndices[size] = featureIndex;
+			values[size] = value;
+			return size++;
+		}
+
+		public void set(int position, double value) {
+			values[position] = value;
+		}
+
+		/**
+		 * @return twice the length, at most the largest array
+		 * @throws IllegalStateException if the length is already the largest
+		 */
+		private static int grow(int length) {
+			if (length >= MAXIMUM_ARRAY_LENGTH)
+				throw new IllegalStateException("Too many rows or features to be built in memory, spill them to disk.");
+			return (int) Math.min(2L * length, MAXIMUM_ARRAY_LENGTH);
+		}
+
+		public void endRow(int label) {
+			if (numberOfRows + 1 == rowOffsets.length) {
+				rowOffsets = Arrays.copyOf(rowOffsets, grow(rowOffsets.length));
+				labels = Arrays.copyOf(labels, rowOffsets.length);
+			}
+			labels[numberOfRows++] = label;
+			rowOffsets[numberOfRows] = size;
+		}
+
+		/**
+		 * Drop the features added to the current row
+		 */
+		public void discardRow() {
+			size = rowOffsets[numberOfRows];
+		}
+
+		/**
+		 * Remove the given features from every row in a single pass
+		 * @param removed <b>true</b> for feature indices to be removed
+		 */
+		public void removeFeatures(boolean[] removed) {
+			int[] indexMap = new int[removed.length];
+
+			for (int i = 0; i < removed.length; i++)
+				indexMap[i] = removed[i] ? -1 : i;
+			remapFeatures(indexMap);
+		}
+
+		/**
+		 * Replace every feature index by its new index in a single pass, dropping features
+		 * mapped to -1. Features beyond the map are kept as they are.
+		 */
+		public void remapFeatures(int[] indexMap) {
+			int position = 0;
+			int k = 0;
+
+			for (int i = 0; i <= numberOfRows; i++) {
+				final int end = (i < numberOfRows) ? rowOffsets[i + 1] : size;
+
+				for (; k < end; k++) {
+					final int featureIndex = featureIndices[k];
+					final int newIndex = (featureIndex < indexMap.length) ? indexMap[featureIndex] : featureIndex;
+
+					if (newIndex < 0)
+						continue;
+					featureIndices[position] = newIndex;
+					values[position] = values[k];
+					position++;
+				}
+				if (i < numberOfRows)
+					rowOffsets[i + 1] = position;
+			}
+			size = position;
+		}
+
+		public int numberOfRows() {
+			return numberOfRows;
+		}
+
+		/**
+		 * @return number of features in the ended rows
+		 */
+		public int numberOfNonZeros() {
+			return rowOffsets[numberOfRows];
+		}
+
+		/**
+		 * Drop the ended rows, keeping the features added to the current row
+		 */
+		public void clearRows() {
+			final int begin = rowOffsets[numberOfRows];
+
+			System.arraycopy(featureIndices, begin, featureIndices, 0, size - begin);
+			System.arraycopy(values, begin, values, 0, size - begin);
+			size -= begin;
+			numberOfRows = 0;
+		}
+
+		public SparseDataset build() {
+			final int nonZeros = rowOffsets[numberOfRows];
+
+			return new SparseDataset(
+					Arrays.copyOf(rowOffsets, numberOfRows + 1),
+					Arrays.copyOf(featureIndices, nonZeros),
+					Arrays.copyOf(values, nonZeros),
+					Arrays.copyOf(labels, numberOfRows));
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package zyh.ml.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import zyh.ml.utils.BinaryOutput;
+
+/**
+ * Writes rows to a file in the format of {@link SparseDataset#write(BinaryOutput)} without keeping
+ * them in memory, so that datasets larger than the heap can be built and opened by
+ * {@link MappedDataset}. Each section is spilled to its own temporary file next to the target, and
+ * the sections are joined when the writer is closed.
+ */
+public class SparseDatasetWriter implements Closeable {
+
+	private final File file;
+
+	private final File[] sectionFiles = new File[4];
+
+	private final BinaryOutput rowOffsets;
+
+	private final BinaryOutput labels;
+
+	private final BinaryOutput featureIndices;
+
+	private final BinaryOutput values;
+
+	private int numberOfRows = 0;
+
+	private long numberOfNonZeros = 0;
+
+	private boolean closed = false;
+
+	public SparseDatasetWriter(File file) throws IOException {
+		this.file = file;
+
+		final File directory = file.getAbsoluteFile().getParentFile();
+
+		for (int i = 0; i < sectionFiles.length; i++)
+			sectionFiles[i] = File.createTempFile(file.getName() + ".", ".section" + i, directory);
+
+		rowOffsets = new BinaryOutput(sectionFiles[0]);
+		labels = new BinaryOutput(sectionFiles[1]);
+		featureIndices = new BinaryOutput(sectionFiles[2]);
+		values = new BinaryOutput(sectionFiles[3]);
+		rowOffsets.writeLong(0);
+	}
+
+	public int numberOfRows() {
+		return numberOfRows;
+	}
+
+	public long numberOfNonZeros() {
+		return numberOfNonZeros;
+	}
+
+	/**
+	 * Append a row made of features begin to end - 1 of the arrays
+	 */
+	public void addRow(int[] featureIndices, double[] values, int begin, int end, int label) throws IOException {
+		if (numberOfRows == Integer.MAX_VALUE)
+			throw new IOException("Too many rows.");
+
+		this.featureIndices.writeInts(featureIndices, begin, end - begin);
+		this.values.writeDoubles(values, begin, end - begin);
+		labels.writeInt(label);
+		numberOfNonZeros += end - begin;
+		rowOffsets.writeLong(numberOfNonZeros);
+		numberOfRows++;
+	}
+
+	/**
+	 * Append all rows of the dataset
+	 */
+	public void addRows(SparseDataset dataset) throws IOException {
+		final int[] datasetFeatureIndices = dataset.getFeatureIndices();
+		final double[] datasetValues = dataset.getValues();
+
+		for (int i = 0; i < dataset.numberOfRows(); i++)
+			addRow(datasetFeatureIndices, datasetValues, dataset.rowBegin(i), dataset.rowEnd(i), dataset.label(i));
+	}
+
+	/**
+	 * Join the sections into the target file and delete the temporary files
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			rowOffsets.close();
+			labels.close();
+			featureIndices.close();
+			values.close();
+
+			try (BinaryOutput output = new BinaryOutput(file)) {
+				output.writeInt(SparseDataset.MAGIC);
+				output.writeInt(SparseDataset.VERSION);
+				output.writeInt(numberOfRows);
+				output.writeInt(0);
+				output.writeLong(numberOfNonZeros);
+				for (int i = 0; i < sectionFiles.length; i++) {
+					output.writeFile(sectionFiles[i]);
+					output.align(8);
+				}
+			}
+		} finally {
+			for (final File sectionFile : sectionFiles)
+				sectionFile.delete();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package zyh.ml.data;
+
+/**
+ * Rows of indexed samples in compressed sparse row format, either in memory ({@link SparseDataset})
+ * or on disk ({@link MappedDataset}). Training reads the rows block by block, so the rows don't
+ * have to fit in memory at once.
+ */
+public interface SparseRows {
+
+	/**
+	 * Some consecutive rows in CSR arrays. Row <i>i</i> of the dataset, for <i>firstRow &lt;= i &lt;
+	 * endRow</i>, is row <i>i - firstRow</i> of the block. Blocks are reused between calls to
+	 * {@link SparseRows#rows(int, int, Block)}.
+	 */
+	public static class Block {
+		public int firstRow;
+		public int endRow;
+		public int[] rowOffsets;
+		public int[] featureIndices;
+		public double[] values;
+		public int[] labels;
+	}
+
+	public int numberOfRows();
+
+	/**
+	 * @return number of non-zero features before the row, which is the total for
+	 *         <i>row = numberOfRows()</i>
+	 */
+	public long rowOffset(int row);
+
+	/**
+	 * Get the rows from begin on, the block may end before the given end
+	 * @param scratch a block to copy the rows into if they are not in memory
+	 * @return a block holding at least row begin
+	 */
+	public Block rows(int begin, int end, Block scratch);
+}
@@ -0,0 +1,231 @@
+package zyh.ml.indexer;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable dictionary from feature names to indices for prediction. The names are packed as UTF-8
+ * bytes into one array, and an open addressing table of hashes and indices is probed with
+ * {@link String#hashCode()}, which strings cache, then checked against the bytes. No string or
+ * boxed index is kept per feature, and lookups don't allocate.
+ */
+public class FrozenDictionary implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3084151765920513412L;
+
+	private final byte[] keys;
+
+	/* Name of feature i is keys[keyOffsets[i]] to keys[keyOffsets[i + 1] - 1] */
+	private final int[] keyOffsets;
+
+	/*
+	 * String hash code of the name in the high 32 bits and feature index + 1 in the low 32 bits of
+	 * each slot, 0 for empty slots. At most half of the slots are used, and a probe only reads the
+	 * names whose hash matches.
+	 */
+	private final long[] slots;
+
+	private FrozenDictionary(byte[] keys, int[] keyOffsets) {
+		final int size = keyOffsets.length - 1;
+
+		this.keys = keys;
+		this.keyOffsets = keyOffsets;
+		this.slots = new long[Integer.highestOneBit(Math.max(1, size) * 2 - 1) * 2];
+
+		final int mask = slots.length - 1;
+
+		for (int i = 0; i < size; i++) {
+			final int hash = hash(keys, keyOffsets[i], keyOffsets[i + 1]);
+			int slot = spread(hash) & mask;
+
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = ((long) hash << 32) | (i + 1);
+		}
+	}
+
+	/**
+	 * @param featureNames feature names by index
+	 */
+	public static FrozenDictionary of(String[] featureNames) {
+		byte[][] encodedNames = new byte[featureNames.length][];
+		int[] keyOffsets = new int[featureNames.length + 1];
+		long length = 0;
+
+		for (int i = 0; i < featureNames.length; i++) {
+			encodedNames[i] = featureNames[i].getBytes(StandardCharsets.UTF_8);
+			length += encodedNames[i].length;
+			if (length > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Feature names are too long to freeze.");
+			keyOffsets[i + 1] = (int) length;
+		}
+
+		byte[] keys = new byte[(int) length];
+
+		for (int i = 0; i < featureNames.length; i++)
+			System.arraycopy(encodedNames[i], 0, keys, keyOffsets[i], encodedNames[i].length);
+
+		return new FrozenDictionary(keys, keyOffsets);
+	}
+
+	/**
+	 * Read feature names written as length and UTF-8 bytes, as by
+	 * {@link zyh.ml.utils.BinaryOutput#writeString(String)}, from the position of the buffer on
+	 */
+	public static FrozenDictionary read(ByteBuffer buffer, int numberOfFeatures) {
+		final int start = buffer.position();
+		int[] keyOffsets = new int[numberOfFeatures + 1];
+
+		for (int i = 0; i < numberOfFeatures; i++) {
+			final int length = buffer.getInt();
+
+			keyOffsets[i + 1] = keyOffsets[i] + length;
+			buffer.position(buffer.position() + length);
+		}
+
+		byte[] keys = new byte[keyOffsets[numberOfFeatures]];
+		final int end = buffer.position();
+
+		buffer.position(start);
+		for (int i = 0; i < numberOfFeatures; i++) {
+			final int length = buffer.getInt();
+
+			buffer.get(keys, keyOffsets[i], length);
+		}
+		buffer.position(end);
+
+		return new FrozenDictionary(keys, keyOffsets);
+	}
+
+	public int size() {
+		return keyOffsets.length - 1;
+	}
+
+	/**
+	 * @return index of the feature, or -1 if it is not in the dictionary
+	 */
+	public int indexOf(String featureName) {
+		final int hash = featureName.hashCode();
+		final int mask = slots.length - 1;
+
+		for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			final long entry = slots[slot];
+			final int index = (int) entry - 1;
+
+			if ((int) (entry >>> 32) == hash && matches(index, featureName))
+				return index;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return feature names by index
+	 */
+	public String[] getFeatureNames() {
+		String[] featureNames = new String[size()];
+
+		for (int i = 0; i < featureNames.length; i++)
+			featureNames[i] = new String(keys, keyOffsets[i], keyOffsets[i + 1] - keyOffsets[i], StandardCharsets.UTF_8);
+
+		return featureNames;
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Hash code of the string encoded by the bytes, computed over its UTF-16 code units
+	 */
+	private static int hash(byte[] bytes, int begin, int end) {
+		int hash = 0;
+		int position = begin;
+
+		while (position < end) {
+			final int first = bytes[position] & 0xFF;
+
+			if (first < 0x80) {
+				hash = 31 * hash + first;
+				position++;
+			}
+			else if (first < 0xE0) {
+				hash = 31 * hash + (((first & 0x1F) << 6) | (bytes[position + 1] & 0x3F));
+				position += 2;
+			}
+			else if (first < 0xF0) {
+				hash = 31 * hash + (((first & 0x0F) << 12) | ((bytes[position + 1] & 0x3F) << 6)
+						| (bytes[position + 2] & 0x3F));
+				position += 3;
+			}
+			else {
+				final int codePoint = ((first & 0x07) << 18) | ((bytes[position + 1] & 0x3F) << 12)
+						| ((bytes[position + 2] & 0x3F) << 6) | (bytes[position + 3] & 0x3F);
+
+				hash = 31 * hash + Character.highSurrogate(codePoint);
+				hash = 31 * hash + Character.lowSurrogate(codePoint);
+				position += 4;
+			}
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Compare the UTF-8 encoding of the name, as by {@link String#getBytes}, with the stored bytes
+	 */
+	private boolean matches(int index, String featureName) {
+		int position = keyOffsets[index];
+		final int end = keyOffsets[index + 1];
+		final int length = featureName.length();
+
+		for (int i = 0; i < length; i++) {
+			final char c = featureName.charAt(i);
+
+			if (c < 0x80) {
+				if (position >= end || keys[position++] != c)
+					return false;
+				continue;
+			}
+
+			int codePoint = c;
+			int numberOfBytes;
+
+			if (c < 0x800) {
+				numberOfBytes = 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(featureName.charAt(i + 1))) {
+				codePoint = Character.toCodePoint(c, featureName.charAt(++i));
+				numberOfBytes = 4;
+			}
+			else if (Character.isSurrogate(c)) {
+				/* Unpaired surrogates are encoded as '?' */
+				if (position >= end || keys[position++] != '?')
+					return false;
+				continue;
+			}
+			else {
+				numberOfBytes = 3;
+			}
+
+			if (end - position < numberOfBytes)
+				return false;
+
+			final int firstByte = (numberOfBytes == 2) ? 0xC0 : (numberOfBytes == 3) ? 0xE0 : 0xF0;
+
+			if (keys[position++] != (byte) (firstByte | (codePoint >>> (6 * (numberOfBytes - 1)))))
+				return false;
+			for (int shift = 6 * (numberOfBytes - 2); shift >= 0; shift -= 6) {
+				if (keys[position++] != (byte) (0x80 | ((codePoint >>> shift) & 0x3F)))
+					return false;
+			}
+		}
+
+		return position == end;
+	}
+}
@@ -0,0 +1,298 @@
+package zyh.ml.indexer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import zyh.ml.data.FeatureTemplate;
+import zyh.ml.data.IndexedSample;
+import zyh.ml.data.Samplable;
+import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.utils.BinaryInput;
+import zyh.ml.utils.BinaryOutput;
+
+/**
+ * Indexer without a dictionary, which hashes every feature into a fixed number of buckets
+ * (the hashing trick). A feature adds <i>sign * value</i> to its bucket, where the sign also comes
+ * from the hash so that collisions cancel out on average. Features are indexed in a single pass and
+ * the memory does not grow with the vocabulary, at the cost of collisions between features.
+ * <p>
+ * Binary features hash the same as the <i>name=value</i> strings of {@link Sample}, so samples added
+ * through {@link Samplable} and samples predicted later are indexed alike. Collisions inside one
+ * sample add up.
+ */
+public class HashingIndexer extends Indexer implements Samplable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2849317505628109524L;
+
+	private static final int DEFAULT_NUMBER_OF_BUCKETS = 1 << 20;
+
+	private int numberOfBuckets;
+
+	private int seed;
+
+	private SparseDataset.Builder builder = new SparseDataset.Builder();
+
+	private int label;
+
+	private Map<String, Integer> labelIndices = new HashMap<>();
+
+	public HashingIndexer() {
+		this(DEFAULT_NUMBER_OF_BUCKETS);
+	}
+
+	public HashingIndexer(int numberOfBuckets) {
+		this(numberOfBuckets, 0);
+	}
+
+	/**
+	 * @param numberOfBuckets number of features besides the bias term
+	 * @param seed seed of the hash function
+	 */
+	public HashingIndexer(int numberOfBuckets, int seed) {
+		if (numberOfBuckets < 1)
+			throw new IllegalArgumentException("Number of buckets must be positive.");
+		this.numberOfBuckets = numberOfBuckets;
+		this.seed = seed;
+		featureNameIndices.put(BIAS_TERM, 0);
+	}
+
+	@Override
+	public int numberOfFeatures() {
+		return numberOfBuckets + 1;
+	}
+
+	public void newSample() {
+		builder.discardRow();
+		label = 0;
+		builder.add(0, 1.0);
+	}
+
+	public void addToSamples() {
+		builder.endRow(label);
+		dataset = null;
+	}
+
+	public void discard() {
+		builder.discardRow();
+	}
+
+	@Override
+	public SparseDataset getDataset() {
+		if (dataset == null)
+			dataset = builder.build();
+		return dataset;
+	}
+
+	@Override
+	public void discardSamples() {
+		builder = new SparseDataset.Builder();
+		dataset = null;
+	}
+
+	@Override
+	public void addBinaryFeature(String name, String value) {
+		final int hash = hash(name, Sample.SEPARATOR, value, seed);
+
+		builder.add(bucket(hash), sign(hash));
+	}
+
+	@Override
+	public void addDecimalFeature(String name, double value) {
+		final int hash = hash(name, "", "", seed);
+
+		builder.add(bucket(hash), sign(hash) * value);
+	}
+
+	@Override
+	public void addBinaryFeature(FeatureTemplate template, CharSequence value) {
+		final int hash = hash(template.getName(), Sample.SEPARATOR, value, seed);
+
+		builder.add(bucket(hash), sign(hash));
+	}
+
+	@Override
+	public void addDecimalFeature(FeatureTemplate template, double value) {
+		final int hash = hash(template.getName(), "", "", seed);
+
+		builder.add(bucket(hash), sign(hash) * value);
+	}
+
+	@Override
+	public void setLabel(String label) {
+		Integer index = labelIndices.get(label);
+
+		if (index == null) {
+			index = labels.size();
+			labels.add(label);
+			labelIndices.put(label, index);
+		}
+		this.label = index;
+	}
+
+	@Override
+	public IndexedSample indexSample(Sample sample) {
+		IndexedSample indexedSample = new IndexedSample();
+
+		indexedSample.features.put(0, 1.0);
+
+		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
+			final int hash = hash(entry.getKey(), "", "", seed);
+
+			addFeature(indexedSample, bucket(hash), sign(hash) * entry.getValue());
+		}
+
+		for (final String binaryFeature : sample.getBinaryFeatures()) {
+			final int hash = hash(binaryFeature, "", "", seed);
+
+			addFeature(indexedSample, bucket(hash), sign(hash));
+		}
+
+		return indexedSample;
+	}
+
+	private static void addFeature(IndexedSample indexedSample, int index, double value) {
+		final Double oldValue = indexedSample.features.get(index);
+
+		indexedSample.features.put(index, (oldValue != null) ? oldValue + value : value);
+	}
+
+	@Override
+	public int indexSample(Sample sample, int[] featureIndices, double[] values) {
+		int length = 0;
+
+		featureIndices[length] = 0;
+		values[length++] = 1.0;
+
+		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
+			final int hash = hash(entry.getKey(), "", "", seed);
+
+			featureIndices[length] = bucket(hash);
+			values[length++] = sign(hash) * entry.getValue();
+		}
+
+		for (final String binaryFeature : sample.getBinaryFeatures()) {
+			final int hash = hash(binaryFeature, "", "", seed);
+
+			featureIndices[length] = bucket(hash);
+			values[length++] = sign(hash);
+		}
+
+		return length;
+	}
+
+	@Override
+	protected void indexSample(Sample sample, SparseDataset.Builder builder) {
+		builder.add(0, 1.0);
+
+		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
+			final int hash = hash(entry.getKey(), "", "", seed);
+
+			builder.add(bucket(hash), sign(hash) * entry.getValue());
+		}
+
+		for (final String binaryFeature : sample.getBinaryFeatures()) {
+			final int hash = hash(binaryFeature, "", "", seed);
+
+			builder.add(bucket(hash), sign(hash));
+		}
+	}
+
+	/**
+	 * Index the samples in one pass, adding labels as they are seen
+	 */
+	public void indexSamples(Iterable<Sample> samples) {
+		final long start = System.nanoTime();
+
+		for (final Sample sample : samples) {
+			builder.discardRow();
+			indexSample(sample, builder);
+			setLabel(sample.getLabel());
+			builder.endRow(label);
+		}
+		dataset = null;
+		recordIndexing(System.nanoTime() - start);
+	}
+
+	@Override
+	protected void writeState(BinaryOutput output) throws IOException {
+		output.writeInt(numberOfBuckets);
+		output.writeInt(seed);
+	}
+
+	@Override
+	protected void readState(BinaryInput input) throws IOException {
+		numberOfBuckets = input.readInt();
+		seed = input.readInt();
+	}
+
+	@Override
+	protected void afterLoad() {
+		labelIndices.clear();
+		for (int i = 0; i < labels.size(); i++)
+			labelIndices.put(labels.get(i), i);
+		builder = (dataset != null) ? new SparseDataset.Builder(dataset) : new SparseDataset.Builder();
+	}
+
+	/* Buckets are 1 to numberOfBuckets, index 0 is the bias term */
+
+	private int bucket(int hash) {
+		return 1 + (hash >>> 1) % numberOfBuckets;
+	}
+
+	private static double sign(int hash) {
+		return ((hash & 1) == 0) ? 1.0 : -1.0;
+	}
+
+	/**
+	 * MurmurHash3 (x86, 32 bits) of the UTF-16 code units of the three strings joined together,
+	 * without building the joined string
+	 */
+	static int hash(CharSequence first, CharSequence second, CharSequence third, int seed) {
+		final int length = first.length() + second.length() + third.length();
+		int h = seed;
+		int block = 0;
+		boolean half = false;
+
+		for (int part = 0; part < 3; part++) {
+			final CharSequence chars = (part == 0) ? first : (part == 1) ? second : third;
+
+			for (int i = 0; i < chars.length(); i++) {
+				if (!half) {
+					block = chars.charAt(i);
+					half = true;
+				}
+				else {
+					block |= chars.charAt(i) << 16;
+					half = false;
+					h ^= mixBlock(block);
+					h = Integer.rotateLeft(h, 13);
+					h = h * 5 + 0xe6546b64;
+				}
+			}
+		}
+
+		if (half)
+			h ^= mixBlock(block);
+
+		h ^= length * 2;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	private static int mixBlock(int block) {
+		block *= 0xcc9e2d51;
+		block = Integer.rotateLeft(block, 15);
+		return block * 0x1b873593;
+	}
+}
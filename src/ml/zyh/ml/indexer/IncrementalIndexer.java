@@ -1,90 +1,417 @@
 package zyh.ml.indexer;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 
-import zyh.ml.data.IndexedSample;
+import zyh.ml.data.FeatureTemplate;
+import zyh.ml.data.MappedDataset;
 import zyh.ml.data.Samplable;
 import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.data.SparseDatasetWriter;
+import zyh.ml.data.SparseRows;
+import zyh.ml.utils.BinaryInput;
+import zyh.ml.utils.BinaryOutput;
 
 public class IncrementalIndexer extends Indexer implements Samplable {
 
 	/**
 	 *
 	 */
-	private static final long serialVersionUID = -7590106955664277112L;
+	private static final long serialVersionUID = -2227859010596779615L;
 
-	private IndexedSample indexedSample;
+	private SparseDataset.Builder builder = new SparseDataset.Builder();
 
-	private Map<String, Integer> binaryFeatures = new HashMap<>();
+	private int label;
 
-	private Set<String> decimalFeatureSet = new HashSet<>();
+	/* Features added to the current sample are marked with its stamp, so duplicates overwrite the old value */
+
+	private int sampleStamp = 0;
+
+	private int[] featureStamps = new int[1024];
+
+	private int[] featurePositions = new int[1024];
+
+	/* Occurrences of each binary feature by index, -1 for the bias term and decimal features */
+	private int[] binaryCounts = new int[1024];
+
+	private Map<String, Integer> labelIndices = new HashMap<>();
+
+	/* Feature indices of the values seen for each template, by template id */
+
+	private transient ValueTable[] templateValues = null;
+
+	private transient int[] templateDecimalIndices = null;
+
+	/* Samples are spilled to the writer when the builder holds more features than the limit */
+
+	private transient SparseDatasetWriter writer = null;
+
+	private transient File spillFile = null;
+
+	private transient MappedDataset mappedDataset = null;
+
+	private int maximumNonZerosInMemory;
 
 	public IncrementalIndexer() {
 		featureNameIndices.put(BIAS_TERM, 0);
-		indexedSamples = new ArrayList<>();
+		binaryCounts[0] = -1;
 	}
 
 	public void newSample() {
-		indexedSample = new IndexedSample();
-		indexedSample.features.put(0, 1.0);
+		if (frozenDictionary != null)
+			throw new IllegalStateException("Features cannot be added to a frozen indexer.");
+		checkSpilling();
+		builder.discardRow();
+		sampleStamp++;
+		label = 0;
+		addFeature(0, 1.0);
 	}
 
 	public void addToSamples() {
-		indexedSamples.add(indexedSample);
-		discard();
+		checkSpilling();
+		builder.endRow(label);
+		dataset = null;
+		sampleStamp++;
+		if (writer != null && builder.numberOfNonZeros() >= maximumNonZerosInMemory)
+			spill();
+	}
+
+	/**
+	 * Write the samples to the file instead of keeping them in memory, so that datasets larger
+	 * than the heap can be indexed. The samples are read back through {@link #getRows()}, which
+	 * ends spilling, and can no longer be returned by {@link #getDataset()}. No samples can be added
+	 * or cut off after that.
+	 * @param maximumNonZerosInMemory features buffered before they are written to the file
+	 */
+	public void spillTo(File file, int maximumNonZerosInMemory) throws IOException {
+		if (spillFile != null)
+			throw new IllegalStateException("Samples are already spilled to disk.");
+
+		writer = new SparseDatasetWriter(file);
+		spillFile = file;
+		this.maximumNonZerosInMemory = maximumNonZerosInMemory;
+		spill();
+	}
+
+	public void spillTo(File file) throws IOException {
+		spillTo(file, 1 << 22);
+	}
+
+	/**
+	 * @throws IllegalStateException if the spilled samples have been read by {@link #getRows()}
+	 */
+	private void checkSpilling() {
+		if (spillFile != null && writer == null)
+			throw new IllegalStateException("Samples spilled to disk cannot be changed after reading them.");
+	}
+
+	private void spill() {
+		checkSpilling();
+		try {
+			writer.addRows(builder.build());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		builder.clearRows();
+	}
+
+	/**
+	 * Samples spilled to disk are written out and mapped on the first call
+	 */
+	@Override
+	public SparseRows getRows() {
+		if (spillFile == null)
+			return getDataset();
+
+		if (mappedDataset == null) {
+			try {
+				spill();
+				writer.close();
+				writer = null;
+				mappedDataset = MappedDataset.open(spillFile);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		return mappedDataset;
 	}
 
 	public void discard() {
-		indexedSample = null;
+		builder.discardRow();
+		sampleStamp++;
 	}
 
 	@Override
-	public void addBinaryFeature(String name, String value) {
-		String featureName = String.format("%s%s%s", name, Sample.SEPARATOR, value);
-		if (!binaryFeatures.containsKey(featureName)) {
-			binaryFeatures.put(featureName, 1);
-			featureNameIndices.put(featureName, featureNameIndices.size());
+	public SparseDataset getDataset() {
+		if (spillFile != null)
+			throw new IllegalStateException("Samples are spilled to disk, use getRows().");
+		if (dataset == null)
+			dataset = builder.build();
+		return dataset;
+	}
+
+	@Override
+	public void discardSamples() {
+		builder = new SparseDataset.Builder();
+		dataset = null;
+		sampleStamp++;
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			writer = null;
+		}
+		spillFile = null;
+		mappedDataset = null;
+	}
+
+	/**
+	 * Occurrences of each binary feature by index, -1 for the bias term and decimal features
+	 */
+	@Override
+	protected void writeState(BinaryOutput output) throws IOException {
+		output.writeInts(binaryCounts, 0, numberOfFeatures());
+	}
+
+	@Override
+	protected void readState(BinaryInput input) throws IOException {
+		final int numberOfFeatures = numberOfFeatures();
+
+		binaryCounts = new int[Math.max(1024, numberOfFeatures)];
+		input.readInts(binaryCounts, 0, numberOfFeatures);
+	}
+
+	@Override
+	protected void afterLoad() {
+		builder = (dataset != null) ? new SparseDataset.Builder(dataset) : new SparseDataset.Builder();
+		featureStamps = new int[binaryCounts.length];
+		featurePositions = new int[binaryCounts.length];
+		sampleStamp++;
+		labelIndices.clear();
+		for (int i = 0; i < labels.size(); i++)
+			labelIndices.put(labels.get(i), i);
+		templateValues = null;
+		templateDecimalIndices = null;
+	}
+
+	/**
+	 * @return index of the new feature
+	 */
+	private int newFeature(String featureName, boolean binary) {
+		final int index = featureNameIndices.size();
+
+		featureNameIndices.put(featureName, index);
+		if (index >= binaryCounts.length) {
+			final int length = Math.max(index + 1, binaryCounts.length * 2);
+			binaryCounts = Arrays.copyOf(binaryCounts, length);
+			featureStamps = Arrays.copyOf(featureStamps, length);
+			featurePositions = Arrays.copyOf(featurePositions, length);
+		}
+		binaryCounts[index] = binary ? 0 : -1;
+
+		return index;
+	}
+
+	private void addFeature(int index, double value) {
+		if (featureStamps[index] == sampleStamp) {
+			builder.set(featurePositions[index], value);
 		}
 		else {
-			binaryFeatures.put(featureName, binaryFeatures.get(featureName) + 1);
+			featureStamps[index] = sampleStamp;
+			featurePositions[index] = builder.add(index, value);
 		}
-		indexedSample.features.put(featureNameIndices.get(featureName), 1.0);
+	}
+
+	@Override
+	public void addBinaryFeature(String name, String value) {
+		addBinaryFeature(name + Sample.SEPARATOR + value);
+	}
+
+	private int addBinaryFeature(String featureName) {
+		Integer index = featureNameIndices.get(featureName);
+
+		if (index == null)
+			index = newFeature(featureName, true);
+		binaryCounts[index]++;
+		addFeature(index, 1.0);
+
+		return index;
 	}
 
 	@Override
 	public void addDecimalFeature(String name, double value) {
-		if (!decimalFeatureSet.contains(name)) {
-			decimalFeatureSet.add(name);
-			featureNameIndices.put(name, featureNameIndices.size());
+		Integer index = featureNameIndices.get(name);
+
+		if (index == null)
+			index = newFeature(name, false);
+		addFeature(index, value);
+	}
+
+	@Override
+	public void addBinaryFeature(FeatureTemplate template, CharSequence value) {
+		final int id = template.id();
+
+		if (templateValues == null || id >= templateValues.length)
+			templateValues = Arrays.copyOf((templateValues != null) ? templateValues : new ValueTable[0], id + 16);
+		if (templateValues[id] == null)
+			templateValues[id] = new ValueTable();
+
+		final ValueTable values = templateValues[id];
+		final int index = values.get(value);
+
+		if (index >= 0) {
+			binaryCounts[index]++;
+			addFeature(index, 1.0);
+		}
+		else {
+			final String key = value.toString();
+
+			values.put(key, addBinaryFeature(template.getName() + Sample.SEPARATOR + key));
 		}
-		indexedSample.features.put(featureNameIndices.get(name), value);
+	}
+
+	@Override
+	public void addDecimalFeature(FeatureTemplate template, double value) {
+		final int id = template.id();
+
+		if (templateDecimalIndices == null || id >= templateDecimalIndices.length) {
+			final int oldLength = (templateDecimalIndices != null) ? templateDecimalIndices.length : 0;
+
+			templateDecimalIndices = Arrays.copyOf((templateDecimalIndices != null) ? templateDecimalIndices : new int[0],
+					id + 16);
+			Arrays.fill(templateDecimalIndices, oldLength, templateDecimalIndices.length, -1);
+		}
+		if (templateDecimalIndices[id] < 0) {
+			final Integer index = featureNameIndices.get(template.getName());
+
+			templateDecimalIndices[id] = (index != null) ? index : newFeature(template.getName(), false);
+		}
+		addFeature(templateDecimalIndices[id], value);
 	}
 
 	@Override
 	public void setLabel(String label) {
-		for (int i = 0; i < labels.size(); i++) {
-			if (labels.get(i).equals(label)) {
-				indexedSample.label = i;
-				return;
-			}
+		Integer index = labelIndices.get(label);
+
+		if (index == null) {
+			index = labels.size();
+			labels.add(label);
+			labelIndices.put(label, index);
 		}
-		labels.add(label);
-		indexedSample.label = labels.size() - 1;
+		this.label = index;
 	}
 
+	/**
+	 * Remove the binary features seen less than cutOff times in a single pass over the samples, and
+	 * compact the remaining features into indices 0 to numberOfFeatures() - 1 in their old order.
+	 * Samples spilled to disk are written out, as by {@link #getRows()}, and remapped while they are read,
+	 * so they must not have been read before.
+	 */
 	public void cutOff(int cutOff) {
-		for (Entry<String, Integer> entry : binaryFeatures.entrySet()) {
-			if (entry.getValue() >= cutOff)
-				continue;
-			int index = featureNameIndices.get(entry.getKey());
-			for (IndexedSample indexedSample : indexedSamples) {
-				indexedSample.features.remove(index);
+		if (frozenDictionary != null)
+			throw new IllegalStateException("A frozen indexer cannot be cut off.");
+		checkSpilling();
+
+		final long start = System.nanoTime();
+		final String[] featureNames = getFeatureNames();
+		int[] indexMap = new int[featureNames.length];
+		int numberOfFeatures = 0;
+
+		for (int i = 0; i < featureNames.length; i++) {
+			if (binaryCounts[i] >= 0 && binaryCounts[i] < cutOff) {
+				indexMap[i] = -1;
+			}
+			else {
+				binaryCounts[numberOfFeatures] = binaryCounts[i];
+				indexMap[i] = numberOfFeatures++;
+			}
+		}
+
+		featureNameIndices = new HashMap<>(Math.max(16, numberOfFeatures * 4 / 3 + 1));
+		for (int i = 0; i < featureNames.length; i++) {
+			if (indexMap[i] >= 0)
+				featureNameIndices.put(featureNames[i], indexMap[i]);
+		}
+
+		if (spillFile != null) {
+			getRows();
+			mappedDataset = mappedDataset.remapFeatures(indexMap);
+		}
+		else {
+			builder.remapFeatures(indexMap);
+		}
+		dataset = null;
+		sampleStamp++;
+		templateValues = null;
+		templateDecimalIndices = null;
+		recordIndexing(System.nanoTime() - start);
+		logger.log("%d features are left after cutting off.", numberOfFeatures);
+	}
+
+	/**
+	 * Open addressing table from values to feature indices, looked up by the characters of a
+	 * {@link CharSequence} so that no string is built for values seen before
+	 */
+	private static class ValueTable {
+		private String[] keys = new String[16];
+		private int[] indices = new int[16];
+		private int size = 0;
+
+		private static int hash(CharSequence value) {
+			int hash = 0;
+
+			for (int i = 0; i < value.length(); i++)
+				hash = 31 * hash + value.charAt(i);
+
+			return hash ^ (hash >>> 16);
+		}
+
+		/**
+		 * @return feature index of the value, or -1 if it has not been put
+		 */
+		public int get(CharSequence value) {
+			final int mask = keys.length - 1;
+
+			for (int slot = hash(value) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[slot].contentEquals(value))
+					return indices[slot];
 			}
+
+			return -1;
+		}
+
+		public void put(String value, int index) {
+			if (2 * (size + 1) > keys.length) {
+				final String[] oldKeys = keys;
+				final int[] oldIndices = indices;
+
+				keys = new String[oldKeys.length * 2];
+				indices = new int[oldKeys.length * 2];
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != null)
+						insert(oldKeys[i], oldIndices[i]);
+				}
+			}
+			insert(value, index);
+			size++;
+		}
+
+		private void insert(String value, int index) {
+			final int mask = keys.length - 1;
+			int slot = hash(value) & mask;
+
+			while (keys[slot] != null)
+				slot = (slot + 1) & mask;
+			keys[slot] = value;
+			indices[slot] = index;
 		}
 	}
 }
@@ -1,7 +1,10 @@
 package zyh.ml.indexer;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,24 +12,50 @@ import java.util.Map.Entry;
 
 import zyh.ml.data.IndexedSample;
 import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.data.SparseRows;
+import zyh.ml.utils.BinaryInput;
+import zyh.ml.utils.BinaryOutput;
 import zyh.ml.utils.Logger;
+import zyh.ml.utils.Metrics;
 
 public abstract class Indexer implements Serializable {
 
 	/**
 	 *
 	 */
-	private static final long serialVersionUID = -5859589069866903397L;
+	private static final long serialVersionUID = 1425394397262209623L;
 
 	protected static final String BIAS_TERM = "##___BIAS__TERM___##";
 
+	private static final int MAGIC = 0x5844495A;
+
+	private static final int VERSION = 1;
+
 	protected Logger logger = new Logger(1);
 
+	protected transient Metrics metrics = null;
+
 	protected Map<String, Integer> featureNameIndices = new HashMap<>();
 
 	protected List<String> labels = new ArrayList<>();
 
-	protected List<IndexedSample> indexedSamples = new ArrayList<>();
+	protected SparseDataset dataset = null;
+
+	/* Replaces featureNameIndices once the indexer is frozen */
+	protected FrozenDictionary frozenDictionary = null;
+
+	/**
+	 * Record the time of indexing into the metrics, as {@link Metrics.Phase#INDEXING}
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	protected void recordIndexing(long nanos) {
+		if (metrics != null)
+			metrics.record(Metrics.Phase.INDEXING, nanos);
+	}
 
 	public List<String> getLabels() {
 		return labels;
@@ -37,11 +66,89 @@ public abstract class Indexer implements Serializable {
 	}
 
 	public int numberOfFeatures() {
-		return featureNameIndices.size();
+		return (frozenDictionary != null) ? frozenDictionary.size() : featureNameIndices.size();
 	}
 
+	/**
+	 * @return feature names by index, the bias term is at index 0. Indexers without a dictionary
+	 *         only return the bias term.
+	 */
+	public String[] getFeatureNames() {
+		if (frozenDictionary != null)
+			return frozenDictionary.getFeatureNames();
+
+		String[] featureNames = new String[featureNameIndices.size()];
+
+		for (final Entry<String, Integer> entry : featureNameIndices.entrySet())
+			featureNames[entry.getValue()] = entry.getKey();
+
+		return featureNames;
+	}
+
+	/**
+	 * Make the indexer read-only for prediction: the samples are dropped and the dictionary is
+	 * replaced by a compact {@link FrozenDictionary}. Samples can still be indexed with
+	 * <code>indexSample</code>, but no features can be added.
+	 */
+	public void freeze() {
+		if (frozenDictionary != null)
+			return;
+		discardSamples();
+		frozenDictionary = FrozenDictionary.of(getFeatureNames());
+		featureNameIndices = Collections.emptyMap();
+	}
+
+	public boolean isFrozen() {
+		return frozenDictionary != null;
+	}
+
+	/**
+	 * @return index of the feature, or -1 if it is not in the dictionary
+	 */
+	protected int featureIndex(String featureName) {
+		if (frozenDictionary != null)
+			return frozenDictionary.indexOf(featureName);
+
+		final Integer index = featureNameIndices.get(featureName);
+
+		return (index != null) ? index : -1;
+	}
+
+	/**
+	 * Drop the indexed samples, keeping the features and labels needed to index new samples
+	 */
+	public void discardSamples() {
+		dataset = null;
+	}
+
+	public int numberOfSamples() {
+		final SparseRows rows = getRows();
+		return (rows != null) ? rows.numberOfRows() : 0;
+	}
+
+	/**
+	 * @return the indexed samples for training, which may be on disk, or <b>null</b> if no samples are indexed
+	 */
+	public SparseRows getRows() {
+		return getDataset();
+	}
+
+	/**
+	 * @return the indexed samples in compressed sparse row format, or <b>null</b> if no samples are indexed
+	 */
+	public SparseDataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * The samples are converted from {@link #getDataset()} on every call,
+	 * training should use the dataset directly.
+	 */
 	public List<IndexedSample> getIndexedSamples() {
-		return indexedSamples;
+		final SparseDataset dataset = getDataset();
+		if (dataset == null)
+			return Collections.emptyList();
+		return dataset.toIndexedSamples();
 	}
 
 	public IndexedSample indexSample(Sample sample) {
@@ -50,17 +157,167 @@ public abstract class Indexer implements Serializable {
 		indexedSample.features.put(0, 1.0);
 
 		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
-			if (featureNameIndices.containsKey(entry.getKey()))
-				indexedSample.features.put(featureNameIndices.get(entry.getKey()), entry.getValue());
+			final int index = featureIndex(entry.getKey());
+			if (index >= 0)
+				indexedSample.features.put(index, entry.getValue());
 		}
 
 		for (final String binaryFeature : sample.getBinaryFeatures()) {
-			if (featureNameIndices.containsKey(binaryFeature))
-				indexedSample.features.put(featureNameIndices.get(binaryFeature), 1.0);
+			final int index = featureIndex(binaryFeature);
+			if (index >= 0)
+				indexedSample.features.put(index, 1.0);
 		}
 
 		return indexedSample;
 	}
 
+	/**
+	 * Save the indexer in a versioned binary format: the class of the indexer, the labels, the
+	 * feature names by index, the state of the subclass and the indexed samples if they are in memory
+	 */
+	public void save(File file) throws IOException {
+		/* Samples on disk are not copied into the saved indexer */
+		final SparseRows rows = getRows();
+		final SparseDataset dataset = (rows instanceof SparseDataset) ? (SparseDataset) rows : null;
+
+		try (BinaryOutput output = new BinaryOutput(file)) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeString(getClass().getName());
+
+			output.writeInt(labels.size());
+			for (final String label : labels)
+				output.writeString(label);
+
+			final String[] featureNames = getFeatureNames();
+
+			output.writeInt(featureNames.length);
+			for (final String featureName : featureNames)
+				output.writeString(featureName);
+
+			writeState(output);
+
+			output.writeInt((dataset != null) ? 1 : 0);
+			if (dataset != null)
+				dataset.write(output);
+		}
+	}
+
+	/**
+	 * Load an indexer saved by {@link #save(File)}, the class of the indexer must have a constructor
+	 * without arguments
+	 */
+	public static Indexer load(File file) throws IOException {
+		try (BinaryInput input = new BinaryInput(file)) {
+			if (input.readInt() != MAGIC)
+				throw new IOException("Not a saved indexer.");
+
+			final int version = input.readInt();
+
+			if (version != VERSION)
+				throw new IOException(String.format("Unsupported indexer version %d.", version));
+
+			Indexer indexer;
+
+			try {
+				indexer = Class.forName(input.readString()).asSubclass(Indexer.class)
+						.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IOException("Cannot create the saved indexer.", e);
+			}
+
+			final int numberOfLabels = input.readInt();
+
+			indexer.labels = new ArrayList<>(numberOfLabels);
+			for (int i = 0; i < numberOfLabels; i++)
+				indexer.labels.add(input.readString());
+
+			final int numberOfFeatures = input.readInt();
+
+			indexer.featureNameIndices = new HashMap<>(Math.max(16, numberOfFeatures * 4 / 3 + 1));
+			for (int i = 0; i < numberOfFeatures; i++)
+				indexer.featureNameIndices.put(input.readString(), i);
+
+			indexer.readState(input);
+			indexer.dataset = (input.readInt() != 0) ? SparseDataset.read(input) : null;
+			indexer.afterLoad();
+
+			return indexer;
+		}
+	}
+
+	/**
+	 * Write the state of the subclass, after the labels and features
+	 */
+	protected void writeState(BinaryOutput output) throws IOException {
+	}
+
+	protected void readState(BinaryInput input) throws IOException {
+	}
+
+	/**
+	 * Called after the indexed samples are loaded
+	 */
+	protected void afterLoad() {
+	}
+
+	/**
+	 * @return the most features {@link #indexSample(Sample, int[], double[])} may write for the sample
+	 */
+	public int maximumNumberOfFeatures(Sample sample) {
+		return 1 + sample.getDecimalFeatures().size() + sample.getBinaryFeatures().size();
+	}
+
+	/**
+	 * Index the sample into parallel arrays without allocating an {@link IndexedSample}, the bias comes first
+	 * @param featureIndices receives the feature indices, with room for {@link #maximumNumberOfFeatures(Sample)}
+	 * @param values receives the feature values
+	 * @return number of features written
+	 */
+	public int indexSample(Sample sample, int[] featureIndices, double[] values) {
+		int length = 0;
+
+		featureIndices[length] = 0;
+		values[length++] = 1.0;
+
+		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
+			final int index = featureIndex(entry.getKey());
+			if (index >= 0) {
+				featureIndices[length] = index;
+				values[length++] = entry.getValue();
+			}
+		}
+
+		for (final String binaryFeature : sample.getBinaryFeatures()) {
+			final int index = featureIndex(binaryFeature);
+			if (index >= 0) {
+				featureIndices[length] = index;
+				values[length++] = 1.0;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Write the features of the given sample into the current row of the builder
+	 * @param sample the sample to be indexed
+	 * @param builder the row will not be ended by this method
+	 */
+	protected void indexSample(Sample sample, SparseDataset.Builder builder) {
+		builder.add(0, 1.0);
+
+		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
+			final int index = featureIndex(entry.getKey());
+			if (index >= 0)
+				builder.add(index, entry.getValue());
+		}
+
+		for (final String binaryFeature : sample.getBinaryFeatures()) {
+			final int index = featureIndex(binaryFeature);
+			if (index >= 0)
+				builder.add(index, 1.0);
+		}
+	}
 
 }
@@ -3,15 +3,20 @@ package zyh.ml.indexer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 
-import zyh.ml.data.IndexedSample;
 import zyh.ml.data.Sample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.utils.Metrics;
+import zyh.ml.utils.ParallelEngine;
 import zyh.ml.utils.TaskDispatcher;
 
 public class OnePassIndexer extends Indexer {
@@ -21,78 +26,275 @@ public class OnePassIndexer extends Indexer {
 	 */
 	private static final long serialVersionUID = 3689149596907508818L;
 
-	private int numberOfThreads = 1;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
 
+	private transient ParallelEngine engine = null;
+
+	/* Whether the engine is the default one, created and shut down by this indexer */
+	private transient boolean ownsEngine = false;
+
+	/**
+	 * Set the number of threads used by the default engine, has no effect once an engine is in use
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	/**
+	 * Count and index features on the given engine, which may be shared with models
+	 */
+	public void setEngine(ParallelEngine engine) {
+		shutdown();
+		this.engine = engine;
+	}
+
+	public ParallelEngine getEngine() {
+		if (engine == null) {
+			engine = new ParallelEngine(numberOfThreads);
+			engine.setMetrics(metrics);
+			ownsEngine = true;
+		}
+		return engine;
+	}
+
+	/**
+	 * Shut down the default engine, if it has been created. It is created again when needed, engines
+	 * given by setEngine are left to their owners.
+	 */
+	public void shutdown() {
+		if (ownsEngine) {
+			engine.shutdown();
+			engine = null;
+			ownsEngine = false;
+		}
+	}
+
+	/**
+	 * Record the time of indexing and the idle time of the engine into the metrics
+	 */
+	@Override
+	public void setMetrics(Metrics metrics) {
+		super.setMetrics(metrics);
+		if (engine != null)
+			engine.setMetrics(metrics);
+	}
+
+	/**
+	 * Features counted in a chunk of samples. Binary features are split into shards by hash, so that
+	 * shard <i>s</i> of all chunks can be merged by one task.
+	 */
+	private static class Counts {
+		public Map<String, int[]>[] binaryFeatures;
+		public Set<String> decimalFeatureSet = new HashSet<>();
+		public Set<String> labelSet = new HashSet<>();
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public Counts(int numberOfShards) {
+			binaryFeatures = new Map[numberOfShards];
+			for (int i = 0; i < numberOfShards; i++)
+				binaryFeatures[i] = new HashMap<>();
+		}
+	}
+
+	private static int shard(String key, int numberOfShards) {
+		final int hash = key.hashCode();
+
+		return (hash ^ (hash >>> 16)) & (numberOfShards - 1);
+	}
+
+	/**
+	 * Count the features in parallel and index them in sorted order: the bias term, then decimal
+	 * features, then binary features seen more than cutOff times, so the indices are dense and do
+	 * not depend on the number of threads. Labels are indexed in sorted order as well.
+	 */
 	public void collectFeatures(Collection<Sample> samples, int cutOff) {
-		Map<String, Integer> binaryFeatures = new HashMap<>();
-		Set<String> decimalFeatureSet = new HashSet<>();
-		Set<String> labelSet = new HashSet<>();
+		final ParallelEngine engine = getEngine();
+		final List<Sample> sampleList = (samples instanceof List) ? (List<Sample>) samples : new ArrayList<>(samples);
+		final int numberOfChunks = Math.max(1, Math.min(engine.getParallelism(), sampleList.size()));
+		final int numberOfShards = Integer.highestOneBit(engine.getParallelism() * 2 - 1);
+		final TaskDispatcher dispatcher = new TaskDispatcher(sampleList.size(), numberOfChunks);
+		final Counts[] counts = new Counts[numberOfChunks];
 
 		logger.log("Indexing features...");
+		logger.tick();
+
+		engine.run(numberOfChunks, new ParallelEngine.Task() {
+			@Override
+			public void run(int chunk) {
+				final Counts chunkCounts = new Counts(numberOfShards);
+
+				for (int i = dispatcher.begin(chunk); i < dispatcher.end(chunk); i++) {
+					final Sample sample = sampleList.get(i);
+
+					for (final String binaryFeature : sample.getBinaryFeatures()) {
+						final Map<String, int[]> shard = chunkCounts.binaryFeatures[shard(binaryFeature, numberOfShards)];
+						final int[] count = shard.get(binaryFeature);
 
-		for (final Sample sample : samples) {
-			for (final String binaryFeature : sample.getBinaryFeatures()) {
-				if (!binaryFeatures.containsKey(binaryFeature))
-					binaryFeatures.put(binaryFeature, 1);
-				else
-					binaryFeatures.put(binaryFeature, binaryFeatures.get(binaryFeature) + 1);
+						if (count == null)
+							shard.put(binaryFeature, new int[] { 1 });
+						else
+							count[0]++;
+					}
+					chunkCounts.decimalFeatureSet.addAll(sample.getDecimalFeatures().keySet());
+					chunkCounts.labelSet.add(sample.getLabel());
+				}
+				counts[chunk] = chunkCounts;
 			}
-			for (final String decimalFeatureName : sample.getDecimalFeatures().keySet())
-				decimalFeatureSet.add(decimalFeatureName);
-			labelSet.add(sample.getLabel());
-		}
+		});
+
+		/* Merge each shard into chunk 0, then sort the features seen more than cutOff times */
+		final String[][] shardFeatures = new String[numberOfShards][];
 
-		Set<String> binaryFeatureSet = new HashSet<>();
+		engine.run(numberOfShards, new ParallelEngine.Task() {
+			@Override
+			public void run(int shard) {
+				final Map<String, int[]> binaryFeatures = counts[0].binaryFeatures[shard];
 
-		for (final Entry<String, Integer> entry : binaryFeatures.entrySet()) {
-			if (entry.getValue() > cutOff)
-				binaryFeatureSet.add(entry.getKey());
+				for (int chunk = 1; chunk < numberOfChunks; chunk++) {
+					for (final Entry<String, int[]> entry : counts[chunk].binaryFeatures[shard].entrySet()) {
+						final int[] count = binaryFeatures.get(entry.getKey());
+
+						if (count == null)
+							binaryFeatures.put(entry.getKey(), entry.getValue());
+						else
+							count[0] += entry.getValue()[0];
+					}
+					counts[chunk].binaryFeatures[shard] = null;
+				}
+
+				List<String> features = new ArrayList<>();
+
+				for (final Entry<String, int[]> entry : binaryFeatures.entrySet()) {
+					if (entry.getValue()[0] > cutOff)
+						features.add(entry.getKey());
+				}
+				counts[0].binaryFeatures[shard] = null;
+				shardFeatures[shard] = features.toArray(new String[features.size()]);
+				Arrays.sort(shardFeatures[shard]);
+			}
+		});
+
+		Set<String> decimalFeatureSet = new HashSet<>();
+		Set<String> labelSet = new HashSet<>();
+
+		for (final Counts chunkCounts : counts) {
+			decimalFeatureSet.addAll(chunkCounts.decimalFeatureSet);
+			labelSet.addAll(chunkCounts.labelSet);
 		}
 
-		featureNameIndices.clear();
+		String[] decimalFeatureNames = decimalFeatureSet.toArray(new String[decimalFeatureSet.size()]);
+
+		Arrays.sort(decimalFeatureNames);
+
+		final List<String> binaryFeatureNames = mergeSorted(shardFeatures);
+		final int numberOfFeatures = 1 + decimalFeatureNames.length + binaryFeatureNames.size();
+
+		frozenDictionary = null;
+		featureNameIndices = new HashMap<>(Math.max(16, numberOfFeatures * 4 / 3 + 1));
 
 		featureNameIndices.put(BIAS_TERM, 0);
-		for (final String decimalFeatureName : decimalFeatureSet)
+		for (final String decimalFeatureName : decimalFeatureNames)
 			featureNameIndices.put(decimalFeatureName, featureNameIndices.size());
-		for (final String binaryFeatureName : binaryFeatures.keySet())
+		for (final String binaryFeatureName : binaryFeatureNames)
 			featureNameIndices.put(binaryFeatureName, featureNameIndices.size());
 
 		labels = new ArrayList<>(labelSet);
+		Collections.sort(labels);
+
+		logger.log("%d features are indexed.", featureNameIndices.size());
+
+		logger.tick();
+		logger.logDuration();
+		recordIndexing(logger.durationNanos());
 	}
+
+	/**
+	 * Merge sorted arrays into one sorted list
+	 */
+	private static List<String> mergeSorted(String[][] arrays) {
+		int size = 0;
+
+		for (final String[] array : arrays)
+			size += array.length;
+
+		final int[] positions = new int[arrays.length];
+		final PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, arrays.length), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer first, Integer second) {
+				return arrays[first][positions[first]].compareTo(arrays[second][positions[second]]);
+			}
+		});
+		List<String> merged = new ArrayList<>(size);
+
+		for (int i = 0; i < arrays.length; i++) {
+			if (arrays[i].length > 0)
+				queue.add(i);
+		}
+
+		while (!queue.isEmpty()) {
+			final int i = queue.poll();
+
+			merged.add(arrays[i][positions[i]++]);
+			if (positions[i] < arrays[i].length)
+				queue.add(i);
+		}
+
+		return merged;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a sample has a label not seen by collectFeatures
+	 */
 	public void indexSamples(List<Sample> samples) {
 		logger.log("Indexing samples...");
 		logger.tick();
 
-		List<Thread> threads = new ArrayList<>();
-		TaskDispatcher dispatcher = new TaskDispatcher(samples.size(), numberOfThreads);
-		IndexedSample[] indexedSamples = new IndexedSample[samples.size()];
-
-		for (int i = 0; i < numberOfThreads; i++) {
-			final int threadIndex = i;
-			threads.add(new Thread(new Runnable() {
-				@Override
-				public void run() {
-					for (int i = dispatcher.begin(threadIndex); i < dispatcher.end(threadIndex); i++)
-						indexedSamples[i] = indexSample(samples.get(i));
-				}
-			}));
-		}
+		final ParallelEngine engine = getEngine();
+		final int numberOfChunks = Math.max(1, Math.min(engine.getParallelism(), samples.size()));
+		final TaskDispatcher dispatcher = TaskDispatcher.balanced(featureOffsets(samples), numberOfChunks);
+		final SparseDataset[] datasets = new SparseDataset[numberOfChunks];
+		final Map<String, Integer> labelIndices = new HashMap<>();
 
-		for (final Thread thread : threads)
-			thread.start();
+		for (int i = 0; i < labels.size(); i++)
+			labelIndices.put(labels.get(i), i);
 
-		for (final Thread thread : threads) {
-			try {
-				thread.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		engine.run(numberOfChunks, new ParallelEngine.Task() {
+			@Override
+			public void run(int chunk) {
+				SparseDataset.Builder builder = new SparseDataset.Builder();
+				for (int i = dispatcher.begin(chunk); i < dispatcher.end(chunk); i++) {
+					final Sample sample = samples.get(i);
+					final Integer label = labelIndices.get(sample.getLabel());
+
+					if (label == null)
+						throw new IllegalArgumentException(String.format("Label %s was not collected.",
+								sample.getLabel()));
+					indexSample(sample, builder);
+					builder.endRow(label);
+				}
+				datasets[chunk] = builder.build();
 			}
-		}
+		});
+
+		this.dataset = SparseDataset.concatenate(Arrays.asList(datasets));
 
 		logger.tick();
 		logger.logDuration();
+		recordIndexing(logger.durationNanos());
+	}
+
+	/**
+	 * @return cumulative number of features of the samples, including the bias term
+	 */
+	private static int[] featureOffsets(List<Sample> samples) {
+		int[] offsets = new int[samples.size() + 1];
+
+		for (int i = 0; i < samples.size(); i++) {
+			final Sample sample = samples.get(i);
+			offsets[i + 1] = offsets[i] + 1 + sample.getBinaryFeatures().size() + sample.getDecimalFeatures().size();
+		}
 
-		this.indexedSamples = Arrays.asList(indexedSamples);
+		return offsets;
 	}
 
 }
@@ -0,0 +1,258 @@
+package zyh.ml.optimization;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import zyh.ml.utils.BinaryInput;
+import zyh.ml.utils.BinaryOutput;
+import zyh.ml.utils.Logger;
+
+/**
+ * Checkpoints of the state of {@link StochasticGradientDescent} after an iteration: the arguments,
+ * the target function and gradient there, the correction pairs of L-BFGS or the radius of the
+ * trust region. An optimization resumed from a checkpoint takes the same steps as if it had not
+ * stopped.
+ * <p>
+ * The state is copied on the optimizing thread and written on a thread of its own, into a
+ * temporary file which is synced and then renamed over the checkpoint, so the checkpoint is
+ * complete even if the process dies while writing. A checkpoint is skipped if the previous one
+ * is still being written.
+ */
+class Checkpoint {
+
+	private static final int MAGIC = 0x54504B43;
+
+	private static final int VERSION = 1;
+
+	private final File file;
+
+	private final int interval;
+
+	private final StochasticGradientDescent.Algorithm algorithm;
+
+	private final int numberOfArguments;
+
+	private Thread pending = null;
+
+	private volatile IOException failure = null;
+
+	private Logger logger = new Logger(1);
+
+	/* The state saved or restored last, owned by the writer while a write is pending */
+
+	private int iteration;
+
+	private double result;
+
+	private double radius;
+
+	private double initialGradientNorm;
+
+	private final double[] arguments;
+
+	private final double[] gradient;
+
+	private LimitedMemoryHistory history;
+
+	/**
+	 * @param interval iterations between checkpoints
+	 */
+	public Checkpoint(File file, int interval, StochasticGradientDescent.Algorithm algorithm, int numberOfArguments) {
+		if (interval < 1)
+			throw new IllegalArgumentException("Checkpoint interval must be positive.");
+		this.file = file;
+		this.interval = interval;
+		this.algorithm = algorithm;
+		this.numberOfArguments = numberOfArguments;
+		this.arguments = new double[numberOfArguments];
+		this.gradient = new double[numberOfArguments];
+	}
+
+	/**
+	 * Restore the state of the checkpoint file, if there is one
+	 * @param history receives the correction pairs, or <b>null</b> for the trust region Newton method
+	 * @return <b>false</b> if there is no checkpoint
+	 */
+	public boolean restore(double[] arguments, double[] gradient, LimitedMemoryHistory history) throws IOException {
+		if (!file.exists())
+			return false;
+
+		try (BinaryInput input = new BinaryInput(file)) {
+			if (input.readInt() != MAGIC)
+				throw new IOException("Not a checkpoint.");
+			if (input.readInt() != VERSION)
+				throw new IOException("Unsupported checkpoint version.");
+			if (input.readInt() != algorithm.ordinal())
+				throw new IOException("Checkpoint is of another algorithm.");
+			if (input.readInt() != numberOfArguments)
+				throw new IOException("Checkpoint has a different number of arguments.");
+
+			iteration = input.readInt();
+			result = input.readDouble();
+			radius = input.readDouble();
+			initialGradientNorm = input.readDouble();
+			input.readDoubles(arguments, 0, numberOfArguments);
+			input.readDoubles(gradient, 0, numberOfArguments);
+			if (history != null)
+				history.read(input);
+			if (input.readInt() != MAGIC)
+				throw new IOException("Checkpoint is corrupted.");
+		}
+
+		logger.log("Resuming from the checkpoint of iteration %d...", iteration);
+		return true;
+	}
+
+	/**
+	 * @return number of iterations done at the last checkpoint
+	 */
+	public int iteration() {
+		return iteration;
+	}
+
+	public double result() {
+		return result;
+	}
+
+	public double radius() {
+		return radius;
+	}
+
+	public double initialGradientNorm() {
+		return initialGradientNorm;
+	}
+
+	/**
+	 * Start writing the state after the given number of iterations, if it is a multiple of the
+	 * interval and the previous checkpoint has been written
+	 * @param history the correction pairs, or <b>null</b> for the trust region Newton method
+	 */
+	public void save(int iteration, double result, double[] arguments, double[] gradient,
+			LimitedMemoryHistory history, double radius, double initialGradientNorm) {
+		if (iteration % interval != 0)
+			return;
+		if (pending != null && pending.isAlive())
+			return;
+		try {
+			finishPending();
+		} catch (IOException e) {
+			logger.log("Checkpoint failed: %s.", e.getMessage());
+		}
+
+		copy(iteration, result, arguments, gradient, history, radius, initialGradientNorm);
+		pending = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}, "Checkpoint");
+		pending.setDaemon(true);
+		pending.start();
+	}
+
+	/**
+	 * Write the final state and wait until it is written. Failures are logged, they don't fail the
+	 * training
+	 */
+	public void saveFinal(int iteration, double result, double[] arguments, double[] gradient,
+			LimitedMemoryHistory history, double radius, double initialGradientNorm) {
+		try {
+			finishPending();
+		} catch (IOException e) {
+			logger.log("Checkpoint failed: %s.", e.getMessage());
+		}
+
+		copy(iteration, result, arguments, gradient, history, radius, initialGradientNorm);
+		try {
+			write();
+		} catch (IOException e) {
+			logger.log("Checkpoint failed: %s.", e.getMessage());
+		}
+	}
+
+	private void copy(int iteration, double result, double[] arguments, double[] gradient,
+			LimitedMemoryHistory history, double radius, double initialGradientNorm) {
+		this.iteration = iteration;
+		this.result = result;
+		this.radius = radius;
+		this.initialGradientNorm = initialGradientNorm;
+		System.arraycopy(arguments, 0, this.arguments, 0, numberOfArguments);
+		System.arraycopy(gradient, 0, this.gradient, 0, numberOfArguments);
+		if (history != null) {
+			if (this.history == null)
+				this.history = new LimitedMemoryHistory(history.capacity(), numberOfArguments);
+			history.copyTo(this.history);
+		}
+	}
+
+	private void write() throws IOException {
+		final File temporaryFile = new File(file.getPath() + ".tmp");
+
+		try (BinaryOutput output = new BinaryOutput(temporaryFile)) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(algorithm.ordinal());
+			output.writeInt(numberOfArguments);
+			output.writeInt(iteration);
+			output.writeDouble(result);
+			output.writeDouble(radius);
+			output.writeDouble(initialGradientNorm);
+			output.writeDoubles(arguments, 0, numberOfArguments);
+			output.writeDoubles(gradient, 0, numberOfArguments);
+			if (history != null)
+				history.write(output);
+			output.writeInt(MAGIC);
+			output.sync();
+		}
+
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+	}
+
+	/**
+	 * Sync the directory of the checkpoint, so the rename survives a crash. Directories can't be
+	 * opened on some platforms, which then only sync the file
+	 */
+	private void syncDirectory() {
+		final File directory = file.getAbsoluteFile().getParentFile();
+
+		if (directory == null)
+			return;
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			/* Not supported on this platform */
+		}
+	}
+
+	/**
+	 * Wait for the pending checkpoint
+	 * @throws IOException if it failed
+	 */
+	private void finishPending() throws IOException {
+		if (pending != null) {
+			try {
+				pending.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			pending = null;
+		}
+
+		final IOException e = failure;
+
+		failure = null;
+		if (e != null)
+			throw e;
+	}
+}
@@ -0,0 +1,41 @@
+package zyh.ml.optimization;
+
+/**
+ * A target function which can be evaluated along a line more cheaply than at arbitrary arguments,
+ * e.g. a linear model which caches the products of the samples with the arguments and with the
+ * direction. Line searches evaluate trial steps with {@link #evaluateStep(double)} and only compute
+ * the gradient at the accepted step.
+ * <p>
+ * Steps follow the convention of {@link StochasticGradientDescent}, the arguments of step size
+ * <i>s</i> are <i>arguments - s * direction</i>.
+ */
+public interface DirectionalTargetFunction extends TargetFunction {
+
+	/**
+	 * Start evaluating along the direction. Implementations may reuse state of the last
+	 * evaluation, so it is cheapest to pass the arguments of the last evaluation.
+	 * @param arguments where the line starts, only read during the call
+	 * @param direction the direction of the line, which will not be modified until the line is left
+	 */
+	public void setDirection(double[] arguments, double[] direction);
+
+	/**
+	 * @return the target function at the given step size, without the gradient
+	 */
+	public double evaluateStep(double stepSize);
+
+	/**
+	 * @return derivative of the target function with respect to the step size at the last
+	 *         {@link #evaluateStep(double)}
+	 */
+	public double stepSlope();
+
+	/**
+	 * Evaluate the target function and its gradient at the given step size, which leaves the line
+	 * @param newArguments the arguments of the step, computed by the caller
+	 * @param gradient the implementation should write the gradient into this array
+	 * @return the evaluated result
+	 */
+	public double evaluateAtStep(double stepSize, double[] newArguments, double[] gradient);
+
+}
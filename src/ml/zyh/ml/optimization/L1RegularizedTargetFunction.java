@@ -0,0 +1,15 @@
+package zyh.ml.optimization;
+
+/**
+ * A target function with an L1 regularization term <i>coefficient * |arguments|_1</i>, which is
+ * not differentiable at zero. {@link #evaluate(double[], double[])} should only compute the
+ * differentiable part, the optimizer adds the L1 term.
+ */
+public interface L1RegularizedTargetFunction extends TargetFunction {
+
+	/**
+	 * @return coefficient of the L1 term, 0 if it is disabled
+	 */
+	public double l1RegularizationCoefficient();
+
+}
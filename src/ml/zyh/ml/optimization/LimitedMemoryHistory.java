@@ -0,0 +1,226 @@
+package zyh.ml.optimization;
+
+import java.io.IOException;
+
+import zyh.ml.utils.BinaryInput;
+import zyh.ml.utils.BinaryOutput;
+import zyh.ml.utils.VectorMath;
+
+/**
+ * Correction pairs <i>(s, y)</i> of L-BFGS, kept in a ring of preallocated buffers. A new pair is
+ * written into the spare slot and only replaces the oldest pair once it is accepted, so rejecting a
+ * pair costs nothing. Slots are allocated the first time they are used and reused afterwards.
+ */
+class LimitedMemoryHistory {
+
+	private final int capacity;
+
+	private final int numberOfArguments;
+
+	/* One more slot than the capacity, the slot after the newest pair is always free */
+
+	private final double[][] argumentDiffs;
+
+	private final double[][] gradientDiffs;
+
+	private final double[] inversedRhos;
+
+	/* y' * y of each pair, for scaling the central Hessian matrix */
+	private final double[] curvatures;
+
+	private final double[] alphas;
+
+	private int newest = 0;
+
+	private int size = 0;
+
+	public LimitedMemoryHistory(int capacity, int numberOfArguments) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("History size must be positive.");
+		this.capacity = capacity;
+		this.numberOfArguments = numberOfArguments;
+		this.argumentDiffs = new double[capacity + 1][];
+		this.gradientDiffs = new double[capacity + 1][];
+		this.inversedRhos = new double[capacity + 1];
+		this.curvatures = new double[capacity + 1];
+		this.alphas = new double[capacity + 1];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Add the pair <i>s = newArguments - arguments</i> and <i>y = newGradient - gradient</i>, unless
+	 * it lacks positive curvature, which would break the positive definiteness
+	 * @return <b>true</b> if the pair is added
+	 */
+	public boolean add(double[] arguments, double[] newArguments, double[] gradient, double[] newGradient) {
+		final int slot = (size == 0) ? newest : next(newest);
+
+		allocate(slot);
+
+		final double[] argDiff = argumentDiffs[slot];
+		final double[] gradDiff = gradientDiffs[slot];
+		double rho = 0.0;
+		double curvature = 0.0;
+
+		for (int i = 0; i < numberOfArguments; i++) {
+			argDiff[i] = newArguments[i] - arguments[i];
+			gradDiff[i] = newGradient[i] - gradient[i];
+			rho += argDiff[i] * gradDiff[i];
+			curvature += gradDiff[i] * gradDiff[i];
+		}
+
+		if (!(rho > 0))
+			return false;
+
+		inversedRhos[slot] = 1.0 / rho;
+		curvatures[slot] = curvature;
+		newest = slot;
+		if (size < capacity)
+			size++;
+		return true;
+	}
+
+	/**
+	 * Assuming the central Hessian matrix is a scaled identity, multiply the inversed Hessian matrix
+	 * with the gradient by the two-loop recursion, without having to store the matrix
+	 * @param gradient not modified
+	 * @param direction receives the product, may not be the gradient
+	 */
+	public void inverseHessianMultiply(double[] gradient, double[] direction) {
+		System.arraycopy(gradient, 0, direction, 0, numberOfArguments);
+		if (size == 0)
+			return;
+
+		/*
+		 * From the newest pair to the oldest. Each update of the direction is fused with the
+		 * dot product of the next pair, so every pair costs one pass over the direction.
+		 */
+		int slot = newest;
+		double product = VectorMath.dot(argumentDiffs[slot], direction);
+
+		for (int k = 0; k < size; k++) {
+			final double alpha = inversedRhos[slot] * product;
+			final int previous = previous(slot);
+
+			alphas[slot] = alpha;
+			if (k + 1 < size)
+				product = VectorMath.axpyDot(-alpha, gradientDiffs[slot], direction, argumentDiffs[previous]);
+			else
+				VectorMath.axpy(-alpha, gradientDiffs[slot], direction);
+			slot = previous;
+		}
+
+		/* s'y / y'y of the newest pair, where s'y = 1 / inversedRho */
+		VectorMath.scale(1.0 / (inversedRhos[newest] * curvatures[newest]), direction);
+
+		/* From the oldest pair to the newest */
+		slot = next(slot);
+		product = VectorMath.dot(gradientDiffs[slot], direction);
+
+		for (int k = 0; k < size; k++) {
+			final double coefficient = alphas[slot] - inversedRhos[slot] * product;
+			final int next = next(slot);
+
+			if (k + 1 < size)
+				product = VectorMath.axpyDot(coefficient, argumentDiffs[slot], direction, gradientDiffs[next]);
+			else
+				VectorMath.axpy(coefficient, argumentDiffs[slot], direction);
+			slot = next;
+		}
+	}
+
+	/**
+	 * Copy the pairs into another history of the same capacity, e.g. for a checkpoint
+	 */
+	public void copyTo(LimitedMemoryHistory history) {
+		history.size = 0;
+		for (int k = 0, slot = oldest(); k < size; k++, slot = next(slot))
+			history.addPair(argumentDiffs[slot], gradientDiffs[slot], inversedRhos[slot], curvatures[slot]);
+	}
+
+	/**
+	 * Write the capacity and the pairs from the oldest to the newest
+	 */
+	public void write(BinaryOutput output) throws IOException {
+		output.writeInt(capacity);
+		output.writeInt(size);
+		for (int k = 0, slot = oldest(); k < size; k++, slot = next(slot)) {
+			output.writeDouble(inversedRhos[slot]);
+			output.writeDouble(curvatures[slot]);
+			output.writeDoubles(argumentDiffs[slot], 0, numberOfArguments);
+			output.writeDoubles(gradientDiffs[slot], 0, numberOfArguments);
+		}
+	}
+
+	/**
+	 * Replace the pairs with those written by {@link #write(BinaryOutput)}, which must fit into the capacity
+	 */
+	public void read(BinaryInput input) throws IOException {
+		input.readInt();
+
+		final int savedSize = input.readInt();
+
+		if (savedSize > capacity)
+			throw new IOException(String.format("%d saved pairs exceed the history size %d.", savedSize, capacity));
+
+		size = 0;
+		for (int k = 0; k < savedSize; k++) {
+			final int slot = (size == 0) ? newest : next(newest);
+
+			allocate(slot);
+			inversedRhos[slot] = input.readDouble();
+			curvatures[slot] = input.readDouble();
+			input.readDoubles(argumentDiffs[slot], 0, numberOfArguments);
+			input.readDoubles(gradientDiffs[slot], 0, numberOfArguments);
+			newest = slot;
+			size++;
+		}
+	}
+
+	private void addPair(double[] argumentDiff, double[] gradientDiff, double inversedRho, double curvature) {
+		final int slot = (size == 0) ? newest : next(newest);
+
+		allocate(slot);
+		System.arraycopy(argumentDiff, 0, argumentDiffs[slot], 0, numberOfArguments);
+		System.arraycopy(gradientDiff, 0, gradientDiffs[slot], 0, numberOfArguments);
+		inversedRhos[slot] = inversedRho;
+		curvatures[slot] = curvature;
+		newest = slot;
+		size++;
+	}
+
+	private void allocate(int slot) {
+		if (argumentDiffs[slot] == null) {
+			argumentDiffs[slot] = new double[numberOfArguments];
+			gradientDiffs[slot] = new double[numberOfArguments];
+		}
+	}
+
+	private int oldest() {
+		int slot = newest;
+
+		for (int k = 1; k < size; k++)
+			slot = previous(slot);
+
+		return slot;
+	}
+
+	private int next(int slot) {
+		return (slot == capacity) ? 0 : slot + 1;
+	}
+
+	private int previous(int slot) {
+		return (slot == 0) ? capacity : slot - 1;
+	}
+}
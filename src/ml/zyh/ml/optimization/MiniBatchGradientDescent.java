@@ -0,0 +1,269 @@
+package zyh.ml.optimization;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import zyh.ml.utils.Logger;
+import zyh.ml.utils.LoggingListener;
+import zyh.ml.utils.Metrics;
+import zyh.ml.utils.VectorMath;
+
+/**
+ * Stochastic optimization on mini-batches of samples. Every epoch shuffles the samples and
+ * makes one update per mini-batch, so an epoch costs one pass over the data.
+ */
+public class MiniBatchGradientDescent implements Optimizer {
+
+	public enum Algorithm {
+		/* Stochastic gradient descent with (classical) momentum */
+		SGD,
+		AdaGrad,
+		Adam
+	}
+
+	public enum LearningRateSchedule {
+		/* learningRate */
+		Constant,
+		/* learningRate / (1 + decay * t), where t is the number of updates */
+		InverseScaling,
+		/* learningRate * decay ^ epoch */
+		ExponentialDecay
+	}
+
+	private Logger logger = new Logger(1);
+
+	private Algorithm algorithm;
+
+	private StochasticTargetFunction targetFunction;
+
+	private int numberOfEpochs;
+
+	private int batchSize = 256;
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	private double learningRate;
+
+	/**
+	 * The target functions sum over the training set, so for SGD the rate applies to the gradient
+	 * and the L1 coefficient divided by the number of samples, i.e. per sample, and the steps don't
+	 * grow with the dataset. AdaGrad and Adam scale the steps by the gradients they have seen, the
+	 * rate bounds the change of an argument per update.
+	 */
+	public void setLearningRate(double learningRate) {
+		this.learningRate = learningRate;
+	}
+
+	private LearningRateSchedule schedule = LearningRateSchedule.Constant;
+
+	private double decay = 0.0;
+
+	public void setSchedule(LearningRateSchedule schedule, double decay) {
+		this.schedule = schedule;
+		this.decay = decay;
+	}
+
+	private double momentum = 0.9;
+
+	public void setMomentum(double momentum) {
+		this.momentum = momentum;
+	}
+
+	/* Coefficients of Adam, epsilon is also used by AdaGrad */
+
+	private double beta1 = 0.9;
+
+	private double beta2 = 0.999;
+
+	private double epsilon = 1e-8;
+
+	private Random random = new Random();
+
+	private Metrics metrics = null;
+
+	/**
+	 * Deliver the epochs to the listeners of the metrics and record the evaluations of the
+	 * mini-batches. Without metrics the epochs are printed by a {@link LoggingListener}.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setSeed(long seed) {
+		random = new Random(seed);
+	}
+
+	public MiniBatchGradientDescent(StochasticTargetFunction targetFunction, int numberOfEpochs) {
+		this(targetFunction, numberOfEpochs, Algorithm.Adam);
+	}
+
+	public MiniBatchGradientDescent(StochasticTargetFunction targetFunction, int numberOfEpochs, Algorithm algorithm) {
+		this.targetFunction = targetFunction;
+		this.numberOfEpochs = numberOfEpochs;
+		this.algorithm = algorithm;
+		this.learningRate = (algorithm == Algorithm.SGD) ? 0.01 : 0.001;
+	}
+
+	@Override
+	public void run() throws Exception {
+		/* The L1 term is handled by a proximal (soft-thresholding) step after each update */
+		final double l1 = (targetFunction instanceof L1RegularizedTargetFunction)
+				? ((L1RegularizedTargetFunction) targetFunction).l1RegularizationCoefficient() : 0.0;
+		final int numberOfArguments = targetFunction.numberOfArguments();
+		final int numberOfSamples = targetFunction.numberOfSamples();
+		double[] arguments = new double[numberOfArguments];
+		double[] gradient = new double[numberOfArguments];
+		/* Velocity for SGD, sum of squared gradients for AdaGrad, first moment for Adam */
+		double[] firstState = new double[numberOfArguments];
+		/* Second moment for Adam */
+		double[] secondState = (algorithm == Algorithm.Adam) ? new double[numberOfArguments] : null;
+		int[] sampleIndices = new int[numberOfSamples];
+
+		for (int i = 0; i < numberOfArguments; i++)
+			arguments[i] = 1.0;
+		targetFunction.initializeArguments(arguments);
+
+		for (int i = 0; i < numberOfSamples; i++)
+			sampleIndices[i] = i;
+
+		final List<String> infoTitles = targetFunction.additionalInfoTitles();
+		final Map<String, Double> infoMap = new LinkedHashMap<>();
+		final double[] infoSums = new double[(infoTitles != null) ? infoTitles.size() : 0];
+		final Metrics metrics;
+
+		if (this.metrics != null)
+			metrics = this.metrics;
+		else {
+			metrics = new Metrics();
+			metrics.addListener(new LoggingListener(logger));
+		}
+
+		if (infoTitles != null) {
+			for (String infoTitle : infoTitles)
+				infoMap.put(infoTitle, 0.0);
+		}
+
+		metrics.trainingStarted(String.format("Mini-batch %s, BatchSize = %d", algorithm, batchSize), numberOfEpochs);
+
+		long step = 0;
+
+		for (int epoch = 0; epoch < numberOfEpochs; epoch++) {
+			double resultSum = 0.0;
+			double rate = learningRate;
+
+			int batches = 0;
+
+			shuffle(sampleIndices);
+			for (int j = 0; j < infoSums.length; j++)
+				infoSums[j] = 0.0;
+
+			for (int begin = 0; begin < numberOfSamples; begin += batchSize) {
+				final int end = Math.min(begin + batchSize, numberOfSamples);
+				final double batchFraction = (double) (end - begin) / numberOfSamples;
+
+				final long start = System.nanoTime();
+
+				resultSum += batchFraction * targetFunction.evaluate(arguments, gradient, sampleIndices, begin, end);
+				metrics.record(Metrics.Phase.EVALUATION, System.nanoTime() - start);
+				step++;
+				batches++;
+
+				if (infoTitles != null) {
+					targetFunction.setAdditionalInfo(infoMap);
+					for (int j = 0; j < infoSums.length; j++)
+						infoSums[j] += batchFraction * infoMap.get(infoTitles.get(j));
+				}
+
+				rate = learningRate(epoch, step);
+				update(arguments, gradient, firstState, secondState, rate, step, l1, numberOfSamples);
+			}
+
+			Map<String, Double> epochInfo = new LinkedHashMap<>();
+
+			epochInfo.put("Learning Rate", rate);
+			for (int j = 0; j < infoSums.length; j++)
+				epochInfo.put(infoTitles.get(j), infoSums[j]);
+			metrics.iterationFinished(epoch + 1, resultSum, Math.sqrt(VectorMath.dot(gradient, gradient)), batches,
+					numberOfSamples, true, epochInfo);
+		}
+
+		metrics.trainingFinished(null);
+		targetFunction.updateArguments(arguments);
+	}
+
+	private double learningRate(int epoch, long step) {
+		switch (schedule) {
+		case InverseScaling:
+			return learningRate / (1.0 + decay * step);
+		case ExponentialDecay:
+			return learningRate * Math.pow(decay, epoch);
+		default:
+			return learningRate;
+		}
+	}
+
+	private void update(double[] arguments, double[] gradient, double[] firstState, double[] secondState,
+			double rate, long step, double l1, int numberOfSamples) {
+		switch (algorithm) {
+		case SGD:
+			/* Per sample rate on the gradient of the whole training set */
+			final double sampleRate = rate / numberOfSamples;
+
+			for (int i = 0; i < arguments.length; i++) {
+				firstState[i] = momentum * firstState[i] + gradient[i];
+				arguments[i] -= sampleRate * firstState[i];
+				if (l1 > 0)
+					arguments[i] = softThreshold(arguments[i], sampleRate * l1);
+			}
+			break;
+		case AdaGrad:
+			for (int i = 0; i < arguments.length; i++) {
+				firstState[i] += gradient[i] * gradient[i];
+
+				final double stepSize = rate / (Math.sqrt(firstState[i]) + epsilon);
+
+				arguments[i] -= stepSize * gradient[i];
+				if (l1 > 0)
+					arguments[i] = softThreshold(arguments[i], stepSize * l1);
+			}
+			break;
+		case Adam:
+			/* Bias corrections of both moments are folded into the step size */
+			final double correctedRate = rate * Math.sqrt(1.0 - Math.pow(beta2, step)) / (1.0 - Math.pow(beta1, step));
+
+			for (int i = 0; i < arguments.length; i++) {
+				firstState[i] = beta1 * firstState[i] + (1.0 - beta1) * gradient[i];
+				secondState[i] = beta2 * secondState[i] + (1.0 - beta2) * gradient[i] * gradient[i];
+
+				final double stepSize = correctedRate / (Math.sqrt(secondState[i]) + epsilon);
+
+				arguments[i] -= stepSize * firstState[i];
+				if (l1 > 0)
+					arguments[i] = softThreshold(arguments[i], stepSize * l1);
+			}
+			break;
+		}
+	}
+
+	private static double softThreshold(double value, double threshold) {
+		if (value > threshold)
+			return value - threshold;
+		if (value < -threshold)
+			return value + threshold;
+		return 0.0;
+	}
+
+	private void shuffle(int[] sampleIndices) {
+		for (int i = sampleIndices.length - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int temp = sampleIndices[i];
+			sampleIndices[i] = sampleIndices[j];
+			sampleIndices[j] = temp;
+		}
+	}
+
+}
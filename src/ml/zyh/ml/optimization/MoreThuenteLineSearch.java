@@ -0,0 +1,404 @@
+package zyh.ml.optimization;
+
+import zyh.ml.utils.Metrics;
+import zyh.ml.utils.VectorMath;
+
+/**
+ * Line search satisfying the strong Wolfe conditions (More and Thuente, 1994). Trial steps are
+ * chosen by cubic and quadratic interpolation of the function values and directional derivatives,
+ * so a good quasi-Newton direction usually needs only one or two evaluations.
+ * <p>
+ * Arguments move along <i>arguments - stepSize * direction</i>, following the convention of
+ * {@link StochasticGradientDescent}. For a {@link DirectionalTargetFunction}, the trial steps after
+ * the first one are evaluated along the line and the gradient is only computed at the last step.
+ */
+class MoreThuenteLineSearch {
+
+	/* Sufficient decrease (Armijo) and curvature coefficients */
+
+	private double ftol = 1e-4;
+
+	private double gtol = 0.9;
+
+	private double xtol = 1e-16;
+
+	private double minimumStepSize = 1e-20;
+
+	private double maximumStepSize = 1e20;
+
+	private int maximumEvaluations = 20;
+
+	private int evaluations;
+
+	private double stepSize;
+
+	/* Step size of the first trial, where the line of a DirectionalTargetFunction starts */
+	private double lineOrigin;
+
+	private String failure;
+
+	private Metrics metrics = null;
+
+	public void setMaximumEvaluations(int maximumEvaluations) {
+		this.maximumEvaluations = maximumEvaluations;
+	}
+
+	/**
+	 * Record the evaluations of the trial steps into the metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return number of evaluations made by the last search
+	 */
+	public int evaluations() {
+		return evaluations;
+	}
+
+	public double stepSize() {
+		return stepSize;
+	}
+
+	/**
+	 * @return why the last search failed, or <b>null</b> if it succeeded
+	 */
+	public String failure() {
+		return failure;
+	}
+
+	/**
+	 * Search for a step size satisfying the strong Wolfe conditions
+	 * @param targetFunction function to be minimized
+	 * @param arguments current arguments, not modified
+	 * @param result target function at the arguments
+	 * @param gradient gradient at the arguments, not modified
+	 * @param direction arguments move along the negative direction
+	 * @param initialStepSize first step size to try
+	 * @param newArguments receives the arguments of the last trial step
+	 * @param newGradient receives the gradient of the last trial step
+	 * @return target function of the last trial step
+	 */
+	public double search(TargetFunction targetFunction, double[] arguments, double result, double[] gradient,
+			double[] direction, double initialStepSize, double[] newArguments, double[] newGradient) {
+		final DirectionalTargetFunction directionalFunction = (targetFunction instanceof DirectionalTargetFunction)
+				? (DirectionalTargetFunction) targetFunction : null;
+		final double newResult = search(targetFunction, directionalFunction, arguments, result, gradient, direction,
+				initialStepSize, newArguments, newGradient);
+
+		if (directionalFunction == null || evaluations < 2)
+			return newResult;
+
+		/* Leave the line at the last trial step */
+		VectorMath.axpy(-stepSize, direction, arguments, newArguments);
+
+		final long start = System.nanoTime();
+		final double lastResult = directionalFunction.evaluateAtStep(stepSize - lineOrigin, newArguments, newGradient);
+
+		record(start);
+		return lastResult;
+	}
+
+	private void record(long start) {
+		if (metrics != null)
+			metrics.record(Metrics.Phase.EVALUATION, System.nanoTime() - start);
+	}
+
+	/**
+	 * @param directionalFunction evaluates the trial steps after the first one if not <b>null</b>,
+	 *        along the line through the first trial step, without writing the new arguments and
+	 *        gradient
+	 */
+	private double search(TargetFunction targetFunction, DirectionalTargetFunction directionalFunction,
+			double[] arguments, double result, double[] gradient, double[] direction, double initialStepSize,
+			double[] newArguments, double[] newGradient) {
+		evaluations = 0;
+		failure = null;
+		stepSize = initialStepSize;
+
+		final double initialSlope = -dot(gradient, direction);
+
+		if (initialSlope >= 0) {
+			failure = "not a descent direction";
+			return result;
+		}
+
+		final double slopeTest = ftol * initialSlope;
+		double width = maximumStepSize - minimumStepSize;
+		double previousWidth = 2.0 * width;
+		boolean firstStage = true;
+		boolean interpolationFailed = false;
+		double newResult = result;
+
+		/* Best step (x) and the other endpoint of the interval (y) */
+		Interval interval = new Interval();
+		interval.stx = interval.sty = 0.0;
+		interval.fx = interval.fy = result;
+		interval.dx = interval.dy = initialSlope;
+
+		while (true) {
+			double stepMin, stepMax;
+
+			if (interval.bracketed) {
+				stepMin = Math.min(interval.stx, interval.sty);
+				stepMax = Math.max(interval.stx, interval.sty);
+			}
+			else {
+				stepMin = interval.stx;
+				stepMax = stepSize + 4.0 * (stepSize - interval.stx);
+			}
+
+			stepSize = Math.max(stepSize, minimumStepSize);
+			stepSize = Math.min(stepSize, maximumStepSize);
+
+			/* Fall back to the best step if nothing better can be found */
+			if (interval.bracketed && (stepSize <= stepMin || stepMax <= stepSize
+					|| evaluations + 1 >= maximumEvaluations || interpolationFailed
+					|| stepMax - stepMin <= xtol * stepMax))
+				stepSize = interval.stx;
+
+			double slope;
+			final long start = System.nanoTime();
+
+			if (directionalFunction != null && evaluations > 0) {
+				/* The first step is usually accepted, so the line is only set up when it is not */
+				if (evaluations == 1)
+					directionalFunction.setDirection(newArguments, direction);
+				newResult = directionalFunction.evaluateStep(stepSize - lineOrigin);
+				slope = directionalFunction.stepSlope();
+			}
+			else {
+				VectorMath.axpy(-stepSize, direction, arguments, newArguments);
+				newResult = targetFunction.evaluate(newArguments, newGradient);
+				slope = -dot(newGradient, direction);
+				lineOrigin = stepSize;
+			}
+			record(start);
+			evaluations++;
+
+			final double sufficientDecrease = result + stepSize * slopeTest;
+
+			if (interval.bracketed && (stepSize <= stepMin || stepMax <= stepSize || interpolationFailed)) {
+				failure = "rounding errors prevent further progress";
+				return newResult;
+			}
+			if (stepSize == maximumStepSize && newResult <= sufficientDecrease && slope <= slopeTest) {
+				failure = "step size reaches the maximum";
+				return newResult;
+			}
+			if (stepSize == minimumStepSize && (sufficientDecrease < newResult || slopeTest <= slope)) {
+				failure = "step size reaches 0";
+				return newResult;
+			}
+			if (interval.bracketed && stepMax - stepMin <= xtol * stepMax) {
+				failure = "interval of uncertainty is too small";
+				return newResult;
+			}
+			if (newResult <= sufficientDecrease && Math.abs(slope) <= gtol * (-initialSlope))
+				return newResult;
+			if (evaluations >= maximumEvaluations) {
+				failure = "too many evaluations";
+				return newResult;
+			}
+
+			if (firstStage && newResult <= sufficientDecrease && Math.min(ftol, gtol) * initialSlope <= slope)
+				firstStage = false;
+
+			if (firstStage && sufficientDecrease < newResult && newResult <= interval.fx) {
+				/* Use the modified function psi(step) = f(step) - f(0) - ftol * step * f'(0) */
+				interval.fx -= interval.stx * slopeTest;
+				interval.fy -= interval.sty * slopeTest;
+				interval.dx -= slopeTest;
+				interval.dy -= slopeTest;
+
+				interpolationFailed = !interval.update(stepSize, newResult - stepSize * slopeTest,
+						slope - slopeTest, stepMin, stepMax);
+				stepSize = interval.nextStep;
+
+				interval.fx += interval.stx * slopeTest;
+				interval.fy += interval.sty * slopeTest;
+				interval.dx += slopeTest;
+				interval.dy += slopeTest;
+			}
+			else {
+				interpolationFailed = !interval.update(stepSize, newResult, slope, stepMin, stepMax);
+				stepSize = interval.nextStep;
+			}
+
+			/* Force a sufficient decrease of the interval */
+			if (interval.bracketed) {
+				if (0.66 * previousWidth <= Math.abs(interval.sty - interval.stx))
+					stepSize = interval.stx + 0.5 * (interval.sty - interval.stx);
+				previousWidth = width;
+				width = Math.abs(interval.sty - interval.stx);
+			}
+		}
+	}
+
+	/**
+	 * The interval of uncertainty, updated as in <code>dcstep</code> of MINPACK-2
+	 */
+	private static class Interval {
+		public double stx, fx, dx;
+		public double sty, fy, dy;
+		public boolean bracketed = false;
+		public double nextStep;
+
+		/**
+		 * @return <b>false</b> if the trial step is inconsistent with the interval
+		 */
+		public boolean update(double t, double ft, double dt, double stepMin, double stepMax) {
+			final boolean oppositeSigns = dt * Math.signum(dx) < 0;
+			boolean bound;
+			double next;
+
+			if (bracketed) {
+				if (t <= Math.min(stx, sty) || Math.max(stx, sty) <= t)
+					return false;
+				if (0 <= dx * (t - stx))
+					return false;
+				if (stepMax < stepMin)
+					return false;
+			}
+
+			if (fx < ft) {
+				/* Higher function value, the minimum is bracketed */
+				bound = true;
+				final double cubic = cubicMinimizer(stx, fx, dx, t, ft, dt);
+				final double quadratic = quadraticMinimizer(stx, fx, dx, t, ft);
+
+				if (Math.abs(cubic - stx) < Math.abs(quadratic - stx))
+					next = cubic;
+				else
+					next = cubic + 0.5 * (quadratic - cubic);
+				bracketed = true;
+			}
+			else if (oppositeSigns) {
+				/* Derivatives have opposite signs, the minimum is bracketed */
+				bound = false;
+				final double cubic = cubicMinimizer(stx, fx, dx, t, ft, dt);
+				final double secant = secantMinimizer(stx, dx, t, dt);
+
+				next = (Math.abs(cubic - t) > Math.abs(secant - t)) ? cubic : secant;
+				bracketed = true;
+			}
+			else if (Math.abs(dt) < Math.abs(dx)) {
+				/* Same sign and the magnitude of the derivative decreases */
+				bound = true;
+				final double cubic = safeguardedCubicMinimizer(stx, fx, dx, t, ft, dt, stepMin, stepMax);
+				final double secant = secantMinimizer(stx, dx, t, dt);
+
+				if (bracketed)
+					next = (Math.abs(t - cubic) < Math.abs(t - secant)) ? cubic : secant;
+				else
+					next = (Math.abs(t - cubic) > Math.abs(t - secant)) ? cubic : secant;
+			}
+			else {
+				/* Same sign and the magnitude of the derivative does not decrease */
+				bound = false;
+				if (bracketed)
+					next = cubicMinimizer(t, ft, dt, sty, fy, dy);
+				else if (stx < t)
+					next = stepMax;
+				else
+					next = stepMin;
+			}
+
+			if (fx < ft) {
+				sty = t;
+				fy = ft;
+				dy = dt;
+			}
+			else {
+				if (oppositeSigns) {
+					sty = stx;
+					fy = fx;
+					dy = dx;
+				}
+				stx = t;
+				fx = ft;
+				dx = dt;
+			}
+
+			next = Math.min(Math.max(next, stepMin), stepMax);
+
+			if (bracketed && bound) {
+				final double limit = stx + 0.66 * (sty - stx);
+
+				if (stx < sty)
+					next = Math.min(next, limit);
+				else
+					next = Math.max(next, limit);
+			}
+
+			nextStep = next;
+			return true;
+		}
+	}
+
+	/**
+	 * Minimizer of the cubic interpolating f(u), f'(u), f(v) and f'(v)
+	 */
+	private static double cubicMinimizer(double u, double fu, double du, double v, double fv, double dv) {
+		final double d = v - u;
+		final double theta = (fu - fv) * 3 / d + du + dv;
+		final double s = Math.max(Math.abs(theta), Math.max(Math.abs(du), Math.abs(dv)));
+		final double a = theta / s;
+		double gamma = s * Math.sqrt(a * a - (du / s) * (dv / s));
+
+		if (v < u)
+			gamma = -gamma;
+
+		final double p = gamma - du + theta;
+		final double q = gamma - du + gamma + dv;
+
+		return u + p / q * d;
+	}
+
+	/**
+	 * Same as {@link #cubicMinimizer}, but returns a bound if the cubic has no minimizer in the direction of v
+	 */
+	private static double safeguardedCubicMinimizer(double u, double fu, double du, double v, double fv, double dv,
+			double minimum, double maximum) {
+		final double d = v - u;
+		final double theta = (fu - fv) * 3 / d + du + dv;
+		final double s = Math.max(Math.abs(theta), Math.max(Math.abs(du), Math.abs(dv)));
+		final double a = theta / s;
+		double gamma = s * Math.sqrt(Math.max(0, a * a - (du / s) * (dv / s)));
+
+		if (u < v)
+			gamma = -gamma;
+
+		final double p = gamma - dv + theta;
+		final double q = gamma - dv + gamma + du;
+		final double r = p / q;
+
+		if (r < 0 && gamma != 0)
+			return v - r * d;
+		else if (d > 0)
+			return maximum;
+		else
+			return minimum;
+	}
+
+	/**
+	 * Minimizer of the quadratic interpolating f(u), f'(u) and f(v)
+	 */
+	private static double quadraticMinimizer(double u, double fu, double du, double v, double fv) {
+		final double a = v - u;
+		return u + du / ((fu - fv) / a + du) / 2 * a;
+	}
+
+	/**
+	 * Minimizer of the quadratic interpolating f'(u) and f'(v)
+	 */
+	private static double secantMinimizer(double u, double du, double v, double dv) {
+		final double a = u - v;
+		return v + dv / (dv - du) * a;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		return VectorMath.dot(a, b);
+	}
+}
@@ -0,0 +1,11 @@
+package zyh.ml.optimization;
+
+public interface Optimizer {
+
+	/**
+	 * Optimize the target function, whose <code>updateArguments</code> is called with the result
+	 * @throws Exception
+	 */
+	public void run() throws Exception;
+
+}
@@ -0,0 +1,18 @@
+package zyh.ml.optimization;
+
+/**
+ * A target function which can multiply its Hessian matrix with a vector without forming the matrix
+ */
+public interface SecondOrderTargetFunction extends TargetFunction {
+
+	/**
+	 * Multiply the Hessian matrix at the given arguments with the vector. Implementations may cache
+	 * per-sample state of the last {@link #evaluate(double[], double[])}, so it is cheapest to call this
+	 * with the arguments of the last evaluation.
+	 * @param arguments where the Hessian matrix is evaluated, which will not be modified
+	 * @param vector the vector to be multiplied, which will not be modified
+	 * @param result the implementation should write the product into this array
+	 */
+	public void hessianVectorMultiply(double[] arguments, double[] vector, double[] result);
+
+}
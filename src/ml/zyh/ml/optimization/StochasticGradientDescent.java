@@ -1,14 +1,17 @@
 package zyh.ml.optimization;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
 import zyh.ml.utils.Logger;
+import zyh.ml.utils.LoggingListener;
+import zyh.ml.utils.Metrics;
+import zyh.ml.utils.VectorMath;
 
-public class StochasticGradientDescent {
+public class StochasticGradientDescent implements Optimizer {
 
 	public enum Algorithm {
 		BFGS,
@@ -36,14 +39,105 @@ public class StochasticGradientDescent {
 		this.normalizeDirectionVector = normalizeDirectionVector;
 	}
 
-	/* Two coefficients for the Backtracking Line Search */
+	private int historySize = 10;
 
-	private double lambda = 0.6;
+	/**
+	 * Number of correction pairs kept by L-BFGS, BFGS keeps all of them
+	 */
+	public void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	private MoreThuenteLineSearch lineSearch = new MoreThuenteLineSearch();
+
+	private File checkpointFile = null;
+
+	private int checkpointInterval = 1;
+
+	/**
+	 * Save the state of the optimizer into the file every given number of iterations and when it
+	 * stops, and resume from the file if it exists when the optimizer starts, with the same number
+	 * of iterations in total. Checkpoints are written in the background, see {@link Checkpoint}.
+	 */
+	public void setCheckpoint(File checkpointFile, int checkpointInterval) {
+		this.checkpointFile = checkpointFile;
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	private Metrics metrics = null;
+
+	/**
+	 * Deliver the iterations to the listeners of the metrics and record the phases of the
+	 * optimization. Without metrics the iterations are printed by a {@link LoggingListener}.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private Metrics metrics() {
+		if (metrics != null)
+			return metrics;
+
+		final Metrics printing = new Metrics();
+
+		printing.addListener(new LoggingListener(logger));
+		return printing;
+	}
+
+	/**
+	 * @return samples read by an evaluation, if the target function tells
+	 */
+	private long samplesPerEvaluation() {
+		return (targetFunction instanceof StochasticTargetFunction)
+				? ((StochasticTargetFunction) targetFunction).numberOfSamples() : 0;
+	}
 
-	private double C = 0.8;
+	/**
+	 * @param infoTitles titles of the values of the optimizer followed by those of the target function
+	 * @param values values of the optimizer
+	 */
+	private Map<String, Double> additionalInfo(List<String> infoTitles, double... values) {
+		Map<String, Double> infoMap = new LinkedHashMap<>();
+
+		for (int i = 0; i < infoTitles.size(); i++)
+			infoMap.put(infoTitles.get(i), (i < values.length) ? values[i] : 0.0);
+		if (infoTitles.size() > values.length)
+			targetFunction.setAdditionalInfo(infoMap);
+
+		return infoMap;
+	}
+
+	private double evaluate(Metrics metrics, double[] arguments, double[] gradient) {
+		final long start = System.nanoTime();
+		final double result = targetFunction.evaluate(arguments, gradient);
+
+		metrics.record(Metrics.Phase.EVALUATION, System.nanoTime() - start);
+		return result;
+	}
+
+	private Checkpoint newCheckpoint(int numberOfArguments) {
+		return (checkpointFile != null)
+				? new Checkpoint(checkpointFile, checkpointInterval, algorithm, numberOfArguments) : null;
+	}
+
+	/* Shrinking factor for the Backtracking Line Search of OWL-QN */
+
+	private double lambda = 0.6;
 
 	private double minimumStepSize = 0.00001;
 
+	/* Coefficients for updating the radius of the Trust Region Newton Method */
+
+	private static final double ETA0 = 1e-4, ETA1 = 0.25, ETA2 = 0.75;
+
+	private static final double SIGMA1 = 0.25, SIGMA2 = 0.5, SIGMA3 = 4.0;
+
+	private int maximumConjugateGradientIterations = 250;
+
+	public void setMaximumConjugateGradientIterations(int maximumConjugateGradientIterations) {
+		this.maximumConjugateGradientIterations = maximumConjugateGradientIterations;
+	}
+
 	public StochasticGradientDescent(TargetFunction targetFunction, int numberOfIterations) {
 		this(targetFunction, numberOfIterations, Algorithm.LimitedMemoryBFGS);
 	}
@@ -54,6 +148,7 @@ public class StochasticGradientDescent {
 		this.algorithm = algorithm;
 	}
 
+	@Override
 	public void run() throws Exception {
 		if (performGradientCheck) {
 			GradientCheck gradientCheck = new GradientCheck();
@@ -63,222 +158,394 @@ public class StochasticGradientDescent {
 			logger.log("Gradient check success...");
 		}
 
+		/* A non-zero L1 coefficient turns L-BFGS into OWL-QN (Andrew and Gao, 2007) */
+		final double l1 = (targetFunction instanceof L1RegularizedTargetFunction)
+				? ((L1RegularizedTargetFunction) targetFunction).l1RegularizationCoefficient() : 0.0;
+
+		if (algorithm == Algorithm.TrustRegieonNewtonMethod) {
+			if (l1 > 0)
+				throw new Exception("Trust region Newton method doesn't support L1 regularization.");
+			if (!(targetFunction instanceof SecondOrderTargetFunction))
+				throw new Exception("Trust region Newton method requires a SecondOrderTargetFunction.");
+			runTrustRegionNewtonMethod((SecondOrderTargetFunction) targetFunction);
+			return;
+		}
+
 		if (algorithm != Algorithm.BFGS && algorithm != Algorithm.LimitedMemoryBFGS)
 			throw new Exception("Unsupported algorithm.");
 
 		final int numberOfArguments = targetFunction.numberOfArguments();
+		/* All work vectors are allocated once, the accepted step swaps them instead of copying */
 		double[] arguments = new double[numberOfArguments];
 		double[] gradient = new double[numberOfArguments];
-
-		int historySize = (algorithm == Algorithm.LimitedMemoryBFGS) ? 10 : 0;
-		FixedSizeList<double[]> argumentDiff = new FixedSizeList<>(historySize);
-		FixedSizeList<double[]> gradientDiff = new FixedSizeList<>(historySize);
-		FixedSizeList<Double> inversedRhos = new FixedSizeList<>(historySize);
-
-		for (int i = 0; i < numberOfArguments; i++)
-			arguments[i] = 1.0;
-		targetFunction.initializeArguments(arguments);
-
-		double result = targetFunction.evaluate(arguments, gradient);
-		List<String> infoTitles = targetFunction.additionalInfoTitles();
-		Map<String, Double> infoMap = new HashMap<>();
-		String titles = "Iteration\tTarget Function\tGradient Norm";
-
-		if (infoTitles != null) {
-			for (String infoTitle : infoTitles) {
-				titles += String.format("\t%s", infoTitle);
-				infoMap.put(infoTitle, 0.0);
-			}
+		double[] newArguments = new double[numberOfArguments];
+		double[] newGradient = new double[numberOfArguments];
+		final double[] direction = new double[numberOfArguments];
+		final LimitedMemoryHistory history = new LimitedMemoryHistory(
+				(algorithm == Algorithm.LimitedMemoryBFGS) ? historySize : Math.max(numberOfIterations, 1),
+				numberOfArguments);
+
+		final Metrics metrics = metrics();
+		final long samplesPerEvaluation = samplesPerEvaluation();
+		final Checkpoint checkpoint = newCheckpoint(numberOfArguments);
+		int iteration = 0;
+		double result;
+
+		lineSearch.setMetrics(metrics);
+		metrics.trainingStarted((l1 > 0) ? String.format("OWL-QN, HistorySize = %d", history.capacity())
+				: (algorithm == Algorithm.LimitedMemoryBFGS) ? String.format("l-BFGS, HistorySize = %d", historySize)
+				: "BFGS", numberOfIterations);
+
+		if (checkpoint != null && checkpoint.restore(arguments, gradient, history)) {
+			iteration = checkpoint.iteration();
+			result = checkpoint.result();
+		}
+		else {
+			for (int i = 0; i < numberOfArguments; i++)
+				arguments[i] = 1.0;
+			targetFunction.initializeArguments(arguments);
+			result = evaluate(metrics, arguments, gradient) + l1 * l1Norm(arguments);
 		}
 
-		logger.log("Stochastic Gradient Descent... MaxIter = %d", numberOfIterations);
-		logger.log(titles);
+		double[] steepest = (l1 > 0) ? new double[numberOfArguments] : gradient;
+		final List<String> infoTitles = targetFunction.additionalInfoTitles();
+		String reason = null;
 
-		for (int i = 0; i < numberOfIterations; i++) {
-			/* direction = InversedHessianMatrix * Gradient */
+		for (int i = iteration; i < numberOfIterations; i++) {
+			/* direction = InversedHessianMatrix * Gradient, using the pseudo-gradient for OWL-QN */
 
-			double[] direction = inverseHessianMultiply(argumentDiff, gradientDiff, inversedRhos, gradient);
+			if (l1 > 0)
+				pseudoGradient(arguments, gradient, l1, steepest);
 
-			if (normalizeDirectionVector) {
-				double factor = 0.0;
+			long start = System.nanoTime();
 
-				for (int j = 0; j < direction.length; j++)
-					factor += direction[j] * direction[j];
-				factor = 1.0 / Math.sqrt(factor);
+			history.inverseHessianMultiply(steepest, direction);
+			metrics.record(Metrics.Phase.TWO_LOOP_RECURSION, System.nanoTime() - start);
 
-				for (int j = 0; j < direction.length; j++)
-					direction[j] *= factor;
+			if (l1 > 0) {
+				/* Only move where the direction agrees with the pseudo-gradient */
+				for (int j = 0; j < direction.length; j++) {
+					if (direction[j] * steepest[j] <= 0)
+						direction[j] = 0.0;
+				}
 			}
 
-			/* Perform a line search on the direction */
-
-			double slope = 0.0;
+			if (normalizeDirectionVector)
+				VectorMath.scale(1.0 / Math.sqrt(VectorMath.dot(direction, direction)), direction);
 
-			for (int j = 0; j < gradient.length; j++)
-				slope += gradient[j] * (-direction[j]);
-			slope *= C;
-			if (slope > 0)
-				slope = -slope;
+			/* Perform a line search on the direction */
 
-			double stepSize = 1.0;
-			double[] newArguments = new double[arguments.length];
-			double[] newGradient = new double[gradient.length];
+			int evaluations;
+
+			start = System.nanoTime();
+			if (l1 > 0) {
+				/* Backtracking line search, since OWL-QN projects every trial step onto an orthant */
+				double stepSize = 1.0;
+
+				evaluations = 0;
+				while (true) {
+					VectorMath.axpy(-stepSize, direction, arguments, newArguments);
+					projectOntoOrthant(newArguments, arguments, steepest);
+					double newResult = evaluate(metrics, newArguments, newGradient) + l1 * l1Norm(newArguments);
+					evaluations++;
+					/* Armijo condition along the projected step */
+					double decrease = 0.0;
+
+					for (int j = 0; j < arguments.length; j++)
+						decrease += steepest[j] * (arguments[j] - newArguments[j]);
+					if (newResult <= result - 1e-4 * decrease) {
+						result = newResult;
+						break;
+					}
+					stepSize *= lambda;
+					if (stepSize < minimumStepSize)
+						break;
+				}
 
-			while (true) {
-				for (int j = 0; j < arguments.length; j++)
-					newArguments[j] = arguments[j] - stepSize * direction[j];
-				double newResult = targetFunction.evaluate(newArguments, newGradient);
-				if (newResult < result) { // + stepSize * slope) {
-					result = newResult;
+				if (stepSize < minimumStepSize) {
+					reason = "Step size reaches 0 during line search";
 					break;
 				}
-				stepSize *= lambda;
-				if (stepSize < minimumStepSize)
-					break;
 			}
-
-			if (stepSize < minimumStepSize) {
-				logger.log("Step size reaches 0 during line search.");
-				break;
+			else {
+				/* Without curvature information, start with a step of unit length */
+				final double initialStepSize = (history.size() == 0 && !normalizeDirectionVector)
+						? 1.0 / Math.sqrt(dot(direction, direction)) : 1.0;
+				final double newResult = lineSearch.search(targetFunction, arguments, result, gradient, direction,
+						initialStepSize, newArguments, newGradient);
+
+				evaluations = lineSearch.evaluations();
+				if (lineSearch.failure() != null && !(newResult < result)) {
+					reason = String.format("Line search failed: %s", lineSearch.failure());
+					break;
+				}
+				result = newResult;
 			}
+			metrics.record(Metrics.Phase.LINE_SEARCH, System.nanoTime() - start);
 
-			double gradNorm = 0.0;
-
-			for (int j = 0; j < newGradient.length; j++)
-				gradNorm += newGradient[j] * newGradient[j];
-			gradNorm = Math.sqrt(gradNorm);
+			if (l1 > 0)
+				pseudoGradient(newArguments, newGradient, l1, steepest);
 
-			String iterationResults = String.format("%d\t%f\t%f", i + 1, result, gradNorm);
+			final double[] normGradient = (l1 > 0) ? steepest : newGradient;
+			final double gradNorm = Math.sqrt(VectorMath.dot(normGradient, normGradient));
 
-			if (infoTitles != null) {
-				targetFunction.setAdditionalInfo(infoMap);
-				for (String infoTitle : infoTitles) {
-					iterationResults += String.format("\t%f", infoMap.get(infoTitle));
-				}
-			}
-			logger.log(iterationResults);
+			metrics.iterationFinished(i + 1, result, gradNorm, evaluations, evaluations * samplesPerEvaluation, true,
+					(infoTitles != null) ? additionalInfo(infoTitles) : null);
 
 			if (gradNorm <= 0.000001) {
-				logger.log("Norm of gradient reaches 0.");
+				reason = "Norm of gradient reaches 0";
 				break;
 			}
 
-			double[] argDiff = new double[numberOfArguments];
-			double[] gradDiff = new double[numberOfArguments];
-			double rho = 0.0;
-
-			for (int j = 0; j < numberOfArguments; j++) {
-				argDiff[j] = newArguments[j] - arguments[j];
-				gradDiff[j] = newGradient[j] - gradient[j];
-			}
-
-			for (int j = 0; j < numberOfArguments; j++)
-				rho += argDiff[j] * gradDiff[j];
-			inversedRhos.add(1.0 / rho);
-
-			argumentDiff.add(argDiff);
-			gradientDiff.add(gradDiff);
+			history.add(arguments, newArguments, gradient, newGradient);
 
+			double[] temp = arguments;
 			arguments = newArguments;
+			newArguments = temp;
+			temp = gradient;
 			gradient = newGradient;
+			newGradient = temp;
+			if (l1 == 0)
+				steepest = gradient;
+
+			iteration = i + 1;
+			if (checkpoint != null)
+				checkpoint.save(iteration, result, arguments, gradient, history, 0.0, 0.0);
 		}
 
 		targetFunction.updateArguments(arguments);
+		if (checkpoint != null)
+			checkpoint.saveFinal(iteration, result, arguments, gradient, history, 0.0, 0.0);
+		metrics.trainingFinished(reason);
+	}
+
+	private static double l1Norm(double[] arguments) {
+		double norm = 0.0;
+
+		for (int i = 0; i < arguments.length; i++)
+			norm += Math.abs(arguments[i]);
+
+		return norm;
 	}
 
 	/**
-	 * Assuming the central Hessian matrix is identity, this function multiplies the inversed Hessian matrix
-	 * with gradient to form the new direction, without having to store the matrix
-	 * @param argumentDiff
-	 * @param gradientDiff
-	 * @param inversedRhos
-	 * @param gradient
-	 * @return
+	 * The pseudo-gradient of <i>f(x) + l1 * |x|_1</i>, which is the one-sided derivative
+	 * pointing uphill at zeros, or zero if both sides go uphill
 	 */
-	private double[] inverseHessianMultiply(FixedSizeList<double[]> argumentDiff, FixedSizeList<double[]> gradientDiff,
-			FixedSizeList<Double> inversedRhos, double[] gradient) {
-		double[] direction = new double[gradient.length];
-		double[] alphas = new double[argumentDiff.size()];
-		ListIterator<double[]> argDiffIter = argumentDiff.getElements().listIterator();
-		ListIterator<double[]> gradDiffIter = gradientDiff.getElements().listIterator();
-		ListIterator<Double> rhoIter = inversedRhos.getElements().listIterator();
+	private static void pseudoGradient(double[] arguments, double[] gradient, double l1, double[] pseudoGradient) {
+		for (int i = 0; i < arguments.length; i++) {
+			if (arguments[i] < 0)
+				pseudoGradient[i] = gradient[i] - l1;
+			else if (arguments[i] > 0)
+				pseudoGradient[i] = gradient[i] + l1;
+			else if (gradient[i] + l1 < 0)
+				pseudoGradient[i] = gradient[i] + l1;
+			else if (gradient[i] - l1 > 0)
+				pseudoGradient[i] = gradient[i] - l1;
+			else
+				pseudoGradient[i] = 0.0;
+		}
+	}
 
-		System.arraycopy(gradient, 0, direction, 0, gradient.length);
+	/**
+	 * Set the new arguments to zero where they leave the orthant of the old arguments, or for
+	 * zeros, the orthant the negative pseudo-gradient points to
+	 */
+	private static void projectOntoOrthant(double[] newArguments, double[] arguments, double[] pseudoGradient) {
+		for (int i = 0; i < newArguments.length; i++) {
+			final double orthant = (arguments[i] != 0) ? Math.signum(arguments[i]) : -Math.signum(pseudoGradient[i]);
 
-		for (int i = argumentDiff.size() - 1; i >= 0; i--) {
-			double alpha = 0.0;
-			final double rho = rhoIter.next();
-			final double[] argDiff = argDiffIter.next();
-			final double[] gradDiff = gradDiffIter.next();
+			if (newArguments[i] * orthant <= 0)
+				newArguments[i] = 0.0;
+		}
+	}
 
-			for (int j = 0; j < direction.length; j++)
-				alpha += rho * argDiff[j] * direction[j];
+	/**
+	 * Trust region Newton method (Lin, Weng and Keerthi, 2008). Each iteration approximately solves
+	 * the Newton system with conjugate gradient inside the trust region, so it only needs Hessian-vector
+	 * products and one evaluation of the target function.
+	 * @param targetFunction
+	 * @throws Exception
+	 */
+	private void runTrustRegionNewtonMethod(SecondOrderTargetFunction targetFunction) throws Exception {
+		final int numberOfArguments = targetFunction.numberOfArguments();
+		double[] arguments = new double[numberOfArguments];
+		double[] gradient = new double[numberOfArguments];
+		double[] newArguments = new double[numberOfArguments];
+		double[] newGradient = new double[numberOfArguments];
+		double[] step = new double[numberOfArguments];
+		double[] residual = new double[numberOfArguments];
+		double[] conjugateDirection = new double[numberOfArguments];
+		double[] hessianDirection = new double[numberOfArguments];
+
+		final Metrics metrics = metrics();
+		final long samplesPerEvaluation = samplesPerEvaluation();
+		final Checkpoint checkpoint = newCheckpoint(numberOfArguments);
+		int iteration = 0;
+		double result;
+		double gradNorm;
+		double initialGradNorm;
+		double radius;
+
+		metrics.trainingStarted("Trust Region Newton Method", numberOfIterations);
+
+		if (checkpoint != null && checkpoint.restore(arguments, gradient, null)) {
+			iteration = checkpoint.iteration();
+			result = checkpoint.result();
+			gradNorm = Math.sqrt(dot(gradient, gradient));
+			initialGradNorm = checkpoint.initialGradientNorm();
+			radius = checkpoint.radius();
+		}
+		else {
+			for (int i = 0; i < numberOfArguments; i++)
+				arguments[i] = 1.0;
+			targetFunction.initializeArguments(arguments);
+			result = evaluate(metrics, arguments, gradient);
+			gradNorm = Math.sqrt(dot(gradient, gradient));
+			initialGradNorm = gradNorm;
+			radius = gradNorm;
+		}
 
-			for (int j = 0; j < direction.length; j++)
-				direction[j] -= alpha * gradDiff[j];
+		final List<String> infoTitles = new ArrayList<>();
+		String reason = null;
+
+		infoTitles.add("CG Iterations");
+		infoTitles.add("Radius");
+		if (targetFunction.additionalInfoTitles() != null)
+			infoTitles.addAll(targetFunction.additionalInfoTitles());
+
+		for (int i = iteration; i < numberOfIterations; i++) {
+			final int cgIterations = trustRegionConjugateGradient(metrics, targetFunction, arguments, gradient,
+					radius, step, residual, conjugateDirection, hessianDirection);
+
+			VectorMath.axpy(1.0, step, arguments, newArguments);
+
+			final double gs = dot(gradient, step);
+			final double predictedReduction = -0.5 * (gs - dot(step, residual));
+			final double newResult = evaluate(metrics, newArguments, newGradient);
+			final double actualReduction = result - newResult;
+			final double stepNorm = Math.sqrt(dot(step, step));
+
+			if (i == 0)
+				radius = Math.min(radius, stepNorm);
+
+			/* Minimizer of the quadratic interpolation along the step */
+			final double alpha = (newResult - result - gs <= 0) ? SIGMA3
+					: Math.max(SIGMA1, -0.5 * (gs / (newResult - result - gs)));
+
+			if (actualReduction < ETA0 * predictedReduction)
+				radius = Math.min(Math.max(alpha, SIGMA1) * stepNorm, SIGMA2 * radius);
+			else if (actualReduction < ETA1 * predictedReduction)
+				radius = Math.max(SIGMA1 * radius, Math.min(alpha * stepNorm, SIGMA2 * radius));
+			else if (actualReduction < ETA2 * predictedReduction)
+				radius = Math.max(SIGMA1 * radius, Math.min(alpha * stepNorm, SIGMA3 * radius));
+			else
+				radius = Math.max(radius, Math.min(alpha * stepNorm, SIGMA3 * radius));
+
+			iteration = i + 1;
+
+			final boolean accepted = actualReduction > ETA0 * predictedReduction;
+
+			if (accepted) {
+				double[] temp = arguments;
+				arguments = newArguments;
+				newArguments = temp;
+				temp = gradient;
+				gradient = newGradient;
+				newGradient = temp;
+				result = newResult;
+				gradNorm = Math.sqrt(dot(gradient, gradient));
+			}
 
-			alphas[i] = alpha;
-		}
+			metrics.iterationFinished(i + 1, result, gradNorm, 1, samplesPerEvaluation * (1 + cgIterations), accepted,
+					additionalInfo(infoTitles, cgIterations, radius));
+
+			if (accepted && gradNorm <= 0.000001 * initialGradNorm) {
+				reason = "Norm of gradient reaches 0";
+				break;
+			}
 
-		if (argumentDiff.size() > 0) {
-			double numerator = 0.0;
-			double denominator = 0.0;
-			final double[] argDiff = argumentDiff.elements.getFirst();
-			final double[] gradDiff = gradientDiff.elements.getFirst();
+			if (checkpoint != null)
+				checkpoint.save(iteration, result, arguments, gradient, null, radius, initialGradNorm);
 
-			for (int i = 0; i < argDiff.length; i++) {
-				numerator += gradDiff[i] * argDiff[i];
-				denominator += gradDiff[i] * gradDiff[i];
+			if (actualReduction <= 0 && predictedReduction <= 0) {
+				reason = "Target function cannot be reduced";
+				break;
+			}
+			if (Math.abs(actualReduction) <= 1.0e-12 * Math.abs(result)
+					&& Math.abs(predictedReduction) <= 1.0e-12 * Math.abs(result)) {
+				reason = "Reduction reaches 0";
+				break;
 			}
+		}
 
-			double H = numerator / denominator;
+		targetFunction.updateArguments(arguments);
+		if (checkpoint != null)
+			checkpoint.saveFinal(iteration, result, arguments, gradient, null, radius, initialGradNorm);
+		metrics.trainingFinished(reason);
+	}
 
-			for (int i = 0; i < direction.length; i++)
-				direction[i] *= H;
+	/**
+	 * Approximately solve <i>H * step = -gradient</i> with conjugate gradient, stopping at the
+	 * boundary of the trust region
+	 * @param residual receives <i>-gradient - H * step</i>
+	 * @param direction work vector
+	 * @param hessianDirection work vector
+	 * @return number of conjugate gradient iterations
+	 */
+	private int trustRegionConjugateGradient(Metrics metrics, SecondOrderTargetFunction targetFunction,
+			double[] arguments, double[] gradient, double radius, double[] step, double[] residual, double[] direction,
+			double[] hessianDirection) {
+		final int n = gradient.length;
+
+		for (int i = 0; i < n; i++) {
+			step[i] = 0.0;
+			residual[i] = -gradient[i];
+			direction[i] = residual[i];
 		}
 
-		argDiffIter = argumentDiff.getElements().listIterator(argumentDiff.size());
-		gradDiffIter = gradientDiff.getElements().listIterator(gradientDiff.size());
-		rhoIter = inversedRhos.getElements().listIterator(inversedRhos.size());
+		final double tolerance = 0.1 * Math.sqrt(dot(gradient, gradient));
+		double rTr = dot(residual, residual);
+		int iterations = 0;
 
-		for (int i = 0; i < argumentDiff.size(); i++) {
-			final double alpha = alphas[i];
-			final double rho = rhoIter.previous();
-			final double[] argDiff = argDiffIter.previous();
-			final double[] gradDiff = gradDiffIter.previous();
-			double beta = 0.0;
+		while (iterations < maximumConjugateGradientIterations) {
+			if (Math.sqrt(rTr) <= tolerance)
+				break;
+			iterations++;
 
-			for (int j = 0; j < direction.length; j++)
-				beta += rho * gradDiff[j] * direction[j];
+			final long start = System.nanoTime();
 
-			for (int j = 0; j < direction.length; j++)
-				direction[j] += (alpha - beta) * argDiff[j];
-		}
+			targetFunction.hessianVectorMultiply(arguments, direction, hessianDirection);
+			metrics.record(Metrics.Phase.HESSIAN_VECTOR_PRODUCT, System.nanoTime() - start);
 
-		return direction;
-	}
+			double alpha = rTr / dot(direction, hessianDirection);
 
-	private static class FixedSizeList<T> {
-		private int maximumSize;
-		private LinkedList<T> elements = new LinkedList<>();
+			if (Math.sqrt(VectorMath.axpyDot(alpha, direction, step, step)) > radius) {
+				/* Move back, then to the boundary of the trust region along the direction */
+				final double sts = VectorMath.axpyDot(-alpha, direction, step, step);
+				final double std = dot(step, direction);
+				final double dtd = dot(direction, direction);
+				final double dsq = radius * radius;
+				final double rad = Math.sqrt(std * std + dtd * (dsq - sts));
 
-		public FixedSizeList(int maximumSize) {
-			this.maximumSize = maximumSize;
-		}
+				alpha = (std >= 0) ? (dsq - sts) / (std + rad) : (rad - std) / dtd;
 
-		public int size() {
-			return elements.size();
-		}
+				VectorMath.axpy(alpha, direction, step);
+				VectorMath.axpy(-alpha, hessianDirection, residual);
+				break;
+			}
 
-		public void add(T t) {
-			elements.addFirst(t);
-			if (maximumSize > 0 && elements.size() > maximumSize)
-				elements.removeLast();
-		}
+			final double newRTr = VectorMath.axpyDot(-alpha, hessianDirection, residual, residual);
 
-		public List<T> getElements() {
-			return elements;
+			VectorMath.axpy(newRTr / rTr, direction, residual, direction);
+			rTr = newRTr;
 		}
+
+		return iterations;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		return VectorMath.dot(a, b);
 	}
 
 }
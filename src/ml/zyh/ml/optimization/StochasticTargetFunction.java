@@ -0,0 +1,27 @@
+package zyh.ml.optimization;
+
+/**
+ * A target function which is a weighted sum over samples, so that it can be estimated from a
+ * subset of the samples
+ */
+public interface StochasticTargetFunction extends TargetFunction {
+
+	/**
+	 * @return number of samples the target function sums over
+	 */
+	public int numberOfSamples();
+
+	/**
+	 * Evaluate the target function on the samples <code>sampleIndices[begin]</code> to
+	 * <code>sampleIndices[end - 1]</code>, scaled up so that the expected result and gradient
+	 * are those of {@link #evaluate(double[], double[])}
+	 * @param arguments to be passed in for the evaluation
+	 * @param gradient the implementation should write the gradient into this array
+	 * @param sampleIndices indices of the samples
+	 * @param begin first position in sampleIndices
+	 * @param end position after the last one in sampleIndices
+	 * @return the evaluated result
+	 */
+	public double evaluate(double[] arguments, double[] gradient, int[] sampleIndices, int begin, int end);
+
+}
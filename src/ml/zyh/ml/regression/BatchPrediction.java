@@ -0,0 +1,71 @@
+package zyh.ml.regression;
+
+import java.util.List;
+
+import zyh.ml.data.Sample;
+import zyh.ml.utils.ParallelEngine;
+import zyh.ml.utils.TaskDispatcher;
+
+/**
+ * Runs predictions of a batch of samples in parallel, each thread indexing samples into its own
+ * reusable scratch arrays
+ */
+class BatchPrediction {
+
+	/* Batches with fewer samples per thread are predicted on the calling thread */
+	private static final int MINIMUM_SAMPLES_PER_CHUNK = 256;
+
+	/**
+	 * Indexed features of one sample, reused by every prediction made on the same thread
+	 */
+	public static class Scratch {
+		public int[] featureIndices = new int[64];
+		public double[] values = new double[64];
+
+		public void ensureCapacity(int capacity) {
+			if (featureIndices.length < capacity) {
+				final int newCapacity = Math.max(capacity, featureIndices.length * 2);
+
+				featureIndices = new int[newCapacity];
+				values = new double[newCapacity];
+			}
+		}
+	}
+
+	public interface Prediction {
+		void predict(Sample sample, int index, Scratch scratch);
+	}
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * @return scratch arrays of the calling thread
+	 */
+	public static Scratch scratch() {
+		return scratch.get();
+	}
+
+	/**
+	 * Call the prediction for every sample, with its index in the list
+	 */
+	public static void run(ParallelEngine engine, List<Sample> samples, Prediction prediction) {
+		final int numberOfChunks = Math.max(1,
+				Math.min(engine.getParallelism(), samples.size() / MINIMUM_SAMPLES_PER_CHUNK));
+		final TaskDispatcher dispatcher = new TaskDispatcher(samples.size(), numberOfChunks);
+
+		engine.run(numberOfChunks, new ParallelEngine.Task() {
+			@Override
+			public void run(int taskIndex) {
+				final Scratch threadScratch = scratch.get();
+
+				for (int i = dispatcher.begin(taskIndex); i < dispatcher.end(taskIndex); i++)
+					prediction.predict(samples.get(i), i, threadScratch);
+			}
+		});
+	}
+}
@@ -0,0 +1,213 @@
+package zyh.ml.regression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import zyh.ml.data.SparseRows;
+import zyh.ml.optimization.StochasticGradientDescent;
+import zyh.ml.optimization.TargetFunction;
+import zyh.ml.utils.AllReduce;
+import zyh.ml.utils.Logger;
+import zyh.ml.utils.Metrics;
+
+/**
+ * Logistic regression with the training samples split among processes. Process 0 runs the
+ * optimizer on this target function as on a {@link LogisticRegression}; for every evaluation it
+ * broadcasts the arguments, each process evaluates its part of the samples, and the log
+ * likelihoods, gradients and accuracies are summed by {@link AllReduce#sum(double[])}. The other
+ * processes {@link #serve()} evaluations until process 0 is closed.
+ * <p>
+ * The target function equals that of one {@link LogisticRegression} on all the samples, with the
+ * weights of all parts together. Regularization is added once, by process 0.
+ * <p>
+ * Metrics of the model record the time of summing the parts as {@link Metrics.Phase#REDUCTION}.
+ */
+public class DistributedLogisticRegression implements TargetFunction, Closeable {
+
+	private static final double STOP = 0.0;
+
+	private static final double EVALUATE = 1.0;
+
+	private final LogisticRegression logisticRegression;
+
+	private final AllReduce allReduce;
+
+	/* Number of samples of all processes */
+	private final int numberOfSamples;
+
+	private final double[] partGradient;
+
+	/* Gradient, log likelihood and correct labels of a part, then of all parts */
+	private final double[] sums;
+
+	private final double[] command = new double[1];
+
+	private int correctLabels;
+
+	private boolean closed = false;
+
+	private Logger logger = new Logger(1);
+
+	/**
+	 * Connect the part of the samples of this process, which is a collective call on all processes
+	 * @param logisticRegression the model, whose regularization is used by process 0 and which is
+	 *        updated with the result there
+	 * @param samples the part of the samples of this process
+	 * @param weights weights of the part of the samples, as parts of the weights of all samples
+	 */
+	public DistributedLogisticRegression(LogisticRegression logisticRegression, SparseRows samples, double[] weights,
+			AllReduce allReduce) throws IOException {
+		this.logisticRegression = logisticRegression;
+		this.allReduce = allReduce;
+		this.partGradient = new double[logisticRegression.numberOfArguments()];
+		this.sums = new double[partGradient.length + 2];
+
+		logisticRegression.setTrainingData(samples, weights);
+
+		final double[] counts = new double[] { samples.numberOfRows() };
+
+		allReduce.sum(counts);
+		numberOfSamples = (int) counts[0];
+	}
+
+	public LogisticRegression getModel() {
+		return logisticRegression;
+	}
+
+	public int numberOfSamples() {
+		return numberOfSamples;
+	}
+
+	@Override
+	public int numberOfArguments() {
+		return logisticRegression.numberOfArguments();
+	}
+
+	@Override
+	public void initializeArguments(double[] arguments) {
+		logisticRegression.initializeArguments(arguments);
+	}
+
+	@Override
+	public double evaluate(double[] arguments, double[] gradient) {
+		if (allReduce.rank() != 0)
+			throw new IllegalStateException("Only process 0 evaluates, the others serve.");
+
+		try {
+			command[0] = EVALUATE;
+			allReduce.broadcast(command);
+			allReduce.broadcast(arguments);
+
+			final double logLikelihood = evaluatePart(arguments);
+
+			System.arraycopy(sums, 0, gradient, 0, gradient.length);
+
+			/* Scale by the number of samples as LogisticRegression does */
+			for (int i = 0; i < gradient.length; i++)
+				gradient[i] *= numberOfSamples;
+
+			return logLikelihood * numberOfSamples + logisticRegression.addRegularization(arguments, gradient);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Evaluate the part of this process into the sums and sum them over all processes
+	 * @return the log likelihood of all parts
+	 */
+	private double evaluatePart(double[] arguments) throws IOException {
+		final int numberOfArguments = partGradient.length;
+
+		sums[numberOfArguments] = logisticRegression.evaluatePart(arguments, partGradient);
+		System.arraycopy(partGradient, 0, sums, 0, numberOfArguments);
+		sums[numberOfArguments + 1] = logisticRegression.correctLabels();
+
+		final Metrics metrics = logisticRegression.getMetrics();
+		final long start = System.nanoTime();
+
+		allReduce.sum(sums);
+		if (metrics != null)
+			metrics.record(Metrics.Phase.REDUCTION, System.nanoTime() - start);
+		correctLabels = (int) sums[numberOfArguments + 1];
+
+		return sums[numberOfArguments];
+	}
+
+	/**
+	 * Evaluate parts until process 0 is closed, on the processes other than 0
+	 */
+	public void serve() throws IOException {
+		final double[] arguments = new double[numberOfArguments()];
+
+		while (true) {
+			allReduce.broadcast(command);
+			if (command[0] == STOP)
+				break;
+			allReduce.broadcast(arguments);
+			evaluatePart(arguments);
+		}
+		logger.log("Served by process %d of %d.", allReduce.rank(), allReduce.size());
+	}
+
+	/**
+	 * Fit the samples of all processes with l-BFGS as {@link LogisticRegression#fit}, on process 0
+	 */
+	public boolean fit(int numberOfIterations) {
+		StochasticGradientDescent optimizer = new StochasticGradientDescent(this, numberOfIterations,
+				StochasticGradientDescent.Algorithm.BFGS);
+
+		if (logisticRegression.getMetrics() != null)
+			optimizer.setMetrics(logisticRegression.getMetrics());
+
+		try {
+			optimizer.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public List<String> additionalInfoTitles() {
+		List<String> titles = new ArrayList<>();
+		titles.add("Accuracy");
+		return titles;
+	}
+
+	@Override
+	public void setAdditionalInfo(Map<String, Double> infoMap) {
+		infoMap.put("Accuracy", ((double) correctLabels) / numberOfSamples);
+	}
+
+	@Override
+	public void updateArguments(double[] arguments) {
+		logisticRegression.updateArguments(arguments);
+	}
+
+	/**
+	 * Stop the other processes if this is process 0, and disconnect
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			if (allReduce.rank() == 0) {
+				command[0] = STOP;
+				allReduce.broadcast(command);
+			}
+		} finally {
+			logisticRegression.shutdown();
+			allReduce.close();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package zyh.ml.regression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import zyh.ml.data.MappedDataset;
+import zyh.ml.data.RowRange;
+import zyh.ml.data.SparseRows;
+import zyh.ml.utils.AllReduce;
+import zyh.ml.utils.TaskDispatcher;
+
+/**
+ * Launches {@link DistributedLogisticRegression} on a dataset saved by
+ * {@link zyh.ml.data.SparseDataset#save(File)} or {@link zyh.ml.data.SparseDatasetWriter}. Every
+ * process maps the same file and takes its part of the rows, balanced by the number of non-zero
+ * features, and all samples weigh the same.
+ * <p>
+ * Usage:
+ * <pre>
+ * DistributedTraining local dataset classes features processes iterations [threads] [model]
+ * DistributedTraining coordinator dataset classes features processes iterations port [threads] [model]
+ * DistributedTraining worker dataset host port [threads]
+ * </pre>
+ * <i>local</i> starts the workers on this machine, <i>coordinator</i> waits for workers started
+ * elsewhere. Threads are per process and default to the available processors divided by the
+ * local processes. The model is written with Java serialization.
+ */
+public class DistributedTraining {
+
+	private DistributedTraining() {}
+
+	/**
+	 * @return the part of the rows of the process, balanced by the number of non-zero features
+	 */
+	public static SparseRows part(SparseRows rows, int rank, int size) {
+		final TaskDispatcher dispatcher = TaskDispatcher.balanced(rows.numberOfRows(), new TaskDispatcher.Costs() {
+			@Override
+			public long offset(int task) {
+				return rows.rowOffset(task);
+			}
+		}, size);
+
+		if (rank >= dispatcher.size())
+			return new RowRange(rows, rows.numberOfRows(), rows.numberOfRows());
+		return new RowRange(rows, dispatcher.begin(rank), dispatcher.end(rank));
+	}
+
+	/**
+	 * Wait for the workers and connect the part of process 0, see {@link AllReduce#coordinate}
+	 * @param numberOfThreads threads of this process, or 0 for the available processors
+	 */
+	public static DistributedLogisticRegression coordinate(ServerSocketChannel server, int numberOfProcesses,
+			File dataset, int numberOfClasses, int numberOfFeatures, int numberOfThreads) throws IOException {
+		final AllReduce allReduce = AllReduce.coordinate(server, numberOfProcesses);
+
+		try {
+			final double[] shape = new double[] { numberOfClasses, numberOfFeatures };
+
+			allReduce.broadcast(shape);
+			return connect(allReduce, dataset, numberOfClasses, numberOfFeatures, numberOfThreads);
+		} catch (IOException | RuntimeException e) {
+			allReduce.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Join the coordinator and serve evaluations until training is over
+	 * @param numberOfThreads threads of this process, or 0 for the available processors
+	 */
+	public static void work(String host, int port, File dataset, int numberOfThreads) throws IOException {
+		final AllReduce allReduce = AllReduce.join(host, port);
+		final double[] shape = new double[2];
+
+		try {
+			allReduce.broadcast(shape);
+		} catch (IOException e) {
+			allReduce.close();
+			throw e;
+		}
+
+		try (DistributedLogisticRegression target = connect(allReduce, dataset, (int) shape[0], (int) shape[1],
+				numberOfThreads)) {
+			target.serve();
+		}
+	}
+
+	private static DistributedLogisticRegression connect(AllReduce allReduce, File dataset, int numberOfClasses,
+			int numberOfFeatures, int numberOfThreads) throws IOException {
+		final MappedDataset rows = MappedDataset.open(dataset);
+		final SparseRows part = part(rows, allReduce.rank(), allReduce.size());
+		final double[] weights = new double[part.numberOfRows()];
+		LogisticRegression logisticRegression = new LogisticRegression(numberOfClasses, numberOfFeatures);
+
+		Arrays.fill(weights, 1.0 / rows.numberOfRows());
+		if (numberOfThreads > 0)
+			logisticRegression.setNumberOfThreads(numberOfThreads);
+
+		return new DistributedLogisticRegression(logisticRegression, part, weights, allReduce);
+	}
+
+	/**
+	 * Start workers as processes of the same Java and class path as this one
+	 */
+	public static List<Process> launchWorkers(int numberOfWorkers, String host, int port, File dataset,
+			int numberOfThreads) throws IOException {
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> workers = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < numberOfWorkers; i++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						DistributedTraining.class.getName(), "worker", dataset.getPath(), host, Integer.toString(port),
+						Integer.toString(numberOfThreads));
+
+				builder.redirectErrorStream(true);
+				builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+				workers.add(builder.start());
+			}
+		} catch (IOException e) {
+			for (final Process worker : workers)
+				worker.destroy();
+			throw e;
+		}
+
+		return workers;
+	}
+
+	/**
+	 * Wait for the workers to exit
+	 * @throws IOException if any of them failed
+	 */
+	public static void waitFor(List<Process> workers) throws IOException {
+		try {
+			for (final Process worker : workers) {
+				if (worker.waitFor() != 0)
+					throw new IOException(String.format("Worker exited with %d.", worker.exitValue()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 4 && args[0].equals("worker")) {
+			work(args[2], Integer.parseInt(args[3]), new File(args[1]), (args.length > 4) ? Integer.parseInt(args[4]) : 0);
+			return;
+		}
+
+		final boolean local = args.length >= 6 && args[0].equals("local");
+
+		if (!local && !(args.length >= 7 && args[0].equals("coordinator"))) {
+			System.err.println("Usage: DistributedTraining local dataset classes features processes iterations [threads] [model]");
+			System.err.println("       DistributedTraining coordinator dataset classes features processes iterations port [threads] [model]");
+			System.err.println("       DistributedTraining worker dataset host port [threads]");
+			System.exit(1);
+		}
+
+		final File dataset = new File(args[1]);
+		final int numberOfClasses = Integer.parseInt(args[2]);
+		final int numberOfFeatures = Integer.parseInt(args[3]);
+		final int numberOfProcesses = Integer.parseInt(args[4]);
+		final int numberOfIterations = Integer.parseInt(args[5]);
+		final int next = local ? 6 : 7;
+		final int numberOfThreads = (args.length > next) ? Integer.parseInt(args[next])
+				: local ? Math.max(1, Runtime.getRuntime().availableProcessors() / numberOfProcesses) : 0;
+		final File model = (args.length > next + 1) ? new File(args[next + 1]) : null;
+		final ServerSocketChannel server = AllReduce.listen(local ? 0 : Integer.parseInt(args[6]));
+		final List<Process> workers = local ? launchWorkers(numberOfProcesses - 1, "127.0.0.1",
+				server.socket().getLocalPort(), dataset, numberOfThreads) : new ArrayList<Process>();
+		boolean fitted;
+
+		try (DistributedLogisticRegression target = coordinate(server, numberOfProcesses, dataset, numberOfClasses,
+				numberOfFeatures, numberOfThreads)) {
+			fitted = target.fit(numberOfIterations);
+			if (fitted && model != null) {
+				try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(model))) {
+					output.writeObject(target.getModel());
+				}
+			}
+		}
+		waitFor(workers);
+		System.exit(fitted ? 0 : 1);
+	}
+}
@@ -0,0 +1,380 @@
+package zyh.ml.regression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+
+import zyh.ml.data.Sample;
+import zyh.ml.indexer.FrozenDictionary;
+import zyh.ml.utils.BinaryOutput;
+import zyh.ml.utils.ParallelEngine;
+
+/**
+ * Read-only Logistic Regression model for prediction, exported by {@link LRModel#export(File, Precision)}.
+ * Opening a model maps the file and reads the labels and the feature dictionary into a
+ * {@link FrozenDictionary}, the weights are used in place from the mapping.
+ * <p>
+ * File layout, little endian with every section aligned to 8 bytes:
+ * <pre>
+ * header   magic, version, precision, numberOfClasses, numberOfFeatures and section offsets (64 bytes)
+ * labels   count, then length and UTF-8 bytes of each label
+ * features count, then length and UTF-8 bytes of each feature name, by index
+ * weights  (numberOfClasses - 1) * numberOfFeatures values, class by class
+ * scales   one double per class, for Int8 weights only
+ * </pre>
+ */
+public class FrozenLRModel {
+
+	public enum Precision {
+		Float64,
+		Float32,
+		/* Symmetric quantization with one scale per class */
+		Int8
+	}
+
+	private static final int MAGIC = 0x4D524C5A;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	private final Precision precision;
+
+	private final int numberOfClasses;
+
+	private final int numberOfFeatures;
+
+	private final List<String> labels;
+
+	private final FrozenDictionary dictionary;
+
+	/* Only the view of the precision in use is set */
+
+	private final DoubleBuffer doubleWeights;
+
+	private final FloatBuffer floatWeights;
+
+	private final ByteBuffer byteWeights;
+
+	private final double[] scales;
+
+	private ParallelEngine engine = null;
+
+	/* Whether the engine is the default one, created and shut down by this model */
+	private boolean ownsEngine = false;
+
+	private FrozenLRModel(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a frozen LR model.");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(String.format("Unsupported frozen LR model version %d.", buffer.getInt(4)));
+
+		precision = Precision.values()[buffer.getInt(8)];
+		numberOfClasses = buffer.getInt(12);
+		numberOfFeatures = buffer.getInt(16);
+
+		final int labelsOffset = (int) buffer.getLong(24);
+		final int featuresOffset = (int) buffer.getLong(32);
+		final int weightsOffset = (int) buffer.getLong(40);
+		final int scalesOffset = (int) buffer.getLong(48);
+		final int numberOfWeights = (numberOfClasses - 1) * numberOfFeatures;
+
+		buffer.position(labelsOffset);
+
+		final int numberOfLabels = buffer.getInt();
+
+		labels = new ArrayList<>(numberOfLabels);
+		for (int i = 0; i < numberOfLabels; i++)
+			labels.add(readString(buffer));
+
+		buffer.position(featuresOffset);
+		if (buffer.getInt() != numberOfFeatures)
+			throw new IOException("Frozen LR model has an inconsistent dictionary.");
+
+		dictionary = FrozenDictionary.read(buffer, numberOfFeatures);
+
+		buffer.position(weightsOffset);
+
+		final ByteBuffer weights = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+		doubleWeights = (precision == Precision.Float64) ? weights.asDoubleBuffer() : null;
+		floatWeights = (precision == Precision.Float32) ? weights.asFloatBuffer() : null;
+		byteWeights = (precision == Precision.Int8) ? weights : null;
+
+		if (precision == Precision.Int8) {
+			scales = new double[numberOfClasses - 1];
+			for (int i = 0; i < scales.length; i++)
+				scales[i] = buffer.getDouble(scalesOffset + 8 * i);
+		}
+		else {
+			scales = null;
+		}
+
+		if (weightsOffset + (long) numberOfWeights * bytesPerWeight(precision) > buffer.capacity())
+			throw new IOException("Frozen LR model is truncated.");
+	}
+
+	/**
+	 * Map the model file, which stays mapped until the model is garbage collected
+	 */
+	public static FrozenLRModel open(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			final FileChannel channel = randomAccessFile.getChannel();
+
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Frozen LR models larger than 2GB are not supported.");
+
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			return new FrozenLRModel(buffer.order(ByteOrder.LITTLE_ENDIAN));
+		}
+	}
+
+	static void write(File file, Precision precision, List<String> labels, String[] featureNames,
+			double[] thetas, int numberOfClasses) throws IOException {
+		final int numberOfFeatures = featureNames.length;
+
+		if (thetas == null || thetas.length != (numberOfClasses - 1) * numberOfFeatures)
+			throw new IOException("The model is not trained.");
+
+		try (BinaryOutput output = new BinaryOutput(file)) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(precision.ordinal());
+			output.writeInt(numberOfClasses);
+			output.writeInt(numberOfFeatures);
+			while (output.position() < HEADER_SIZE)
+				output.writeByte((byte) 0);
+
+			final long labelsOffset = output.position();
+
+			output.writeInt(labels.size());
+			for (final String label : labels)
+				output.writeString(label);
+			output.align(8);
+
+			final long featuresOffset = output.position();
+
+			output.writeInt(numberOfFeatures);
+			for (final String featureName : featureNames)
+				output.writeString(featureName);
+			output.align(8);
+
+			final long weightsOffset = output.position();
+			double[] scales = null;
+
+			switch (precision) {
+			case Float64:
+				output.writeDoubles(thetas, 0, thetas.length);
+				break;
+			case Float32:
+				for (int i = 0; i < thetas.length; i++)
+					output.writeFloat((float) thetas[i]);
+				break;
+			case Int8:
+				scales = new double[numberOfClasses - 1];
+				for (int i = 0; i < scales.length; i++) {
+					double maximum = 0.0;
+
+					for (int j = i * numberOfFeatures; j < (i + 1) * numberOfFeatures; j++)
+						maximum = Math.max(maximum, Math.abs(thetas[j]));
+					scales[i] = maximum / 127.0;
+
+					final double inversedScale = (scales[i] > 0) ? 1.0 / scales[i] : 0.0;
+
+					for (int j = i * numberOfFeatures; j < (i + 1) * numberOfFeatures; j++)
+						output.writeByte((byte) Math.round(thetas[j] * inversedScale));
+				}
+				break;
+			}
+			output.align(8);
+
+			final long scalesOffset = output.position();
+
+			if (scales != null)
+				output.writeDoubles(scales, 0, scales.length);
+
+			output.writeLongAt(24, labelsOffset);
+			output.writeLongAt(32, featuresOffset);
+			output.writeLongAt(40, weightsOffset);
+			output.writeLongAt(48, scalesOffset);
+		}
+	}
+
+	private static int bytesPerWeight(Precision precision) {
+		switch (precision) {
+		case Float64:
+			return 8;
+		case Float32:
+			return 4;
+		default:
+			return 1;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getInt()];
+
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Run batch predictions on the given engine, which may be shared with other models
+	 */
+	public synchronized void setEngine(ParallelEngine engine) {
+		shutdown();
+		this.engine = engine;
+	}
+
+	private synchronized ParallelEngine getEngine() {
+		if (engine == null) {
+			engine = new ParallelEngine();
+			ownsEngine = true;
+		}
+		return engine;
+	}
+
+	/**
+	 * Shut down the default engine, if it has been created. It is created again when needed, engines
+	 * given by setEngine are left to their owners.
+	 */
+	public synchronized void shutdown() {
+		if (ownsEngine) {
+			engine.shutdown();
+			engine = null;
+			ownsEngine = false;
+		}
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	public List<String> getLabels() {
+		return Collections.unmodifiableList(labels);
+	}
+
+	public int numberOfLabels() {
+		return numberOfClasses;
+	}
+
+	public int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	public String predict(Sample sample) {
+		return labels.get(predictLabelIndex(sample, BatchPrediction.scratch()));
+	}
+
+	/**
+	 * Predict the labels of the samples in parallel
+	 * @param labels receives the label of each sample, at least as long as the samples
+	 */
+	public void predictBatch(List<Sample> samples, String[] labels) {
+		BatchPrediction.run(getEngine(), samples, new BatchPrediction.Prediction() {
+			@Override
+			public void predict(Sample sample, int index, BatchPrediction.Scratch scratch) {
+				labels[index] = FrozenLRModel.this.labels.get(predictLabelIndex(sample, scratch));
+			}
+		});
+	}
+
+	/**
+	 * Predict the probabilities of the samples in parallel
+	 * @param probabilities receives the probabilities of sample <i>i</i> from
+	 *        <i>i * numberOfLabels</i> on, in the order of {@link #getLabels()}
+	 */
+	public void predictProbabilities(List<Sample> samples, double[] probabilities) {
+		BatchPrediction.run(getEngine(), samples, new BatchPrediction.Prediction() {
+			@Override
+			public void predict(Sample sample, int index, BatchPrediction.Scratch scratch) {
+				final int length = indexSample(sample, scratch);
+				final int offset = index * numberOfClasses;
+
+				for (int i = 0; i < numberOfClasses - 1; i++)
+					probabilities[offset + i] = multiply(i, scratch.featureIndices, scratch.values, length);
+				Softmax.normalize(probabilities, offset, numberOfClasses);
+			}
+		});
+	}
+
+	private int predictLabelIndex(Sample sample, BatchPrediction.Scratch scratch) {
+		final int length = indexSample(sample, scratch);
+		double maxScore = Double.NEGATIVE_INFINITY;
+		int predictedLabel = numberOfClasses - 1;
+
+		for (int i = 0; i < numberOfClasses - 1; i++) {
+			final double score = multiply(i, scratch.featureIndices, scratch.values, length);
+
+			if (score > maxScore) {
+				maxScore = score;
+				predictedLabel = i;
+			}
+		}
+
+		return (maxScore >= 0.0) ? predictedLabel : numberOfClasses - 1;
+	}
+
+	/**
+	 * Same as {@link zyh.ml.indexer.Indexer#indexSample(Sample, int[], double[])}
+	 */
+	private int indexSample(Sample sample, BatchPrediction.Scratch scratch) {
+		scratch.ensureCapacity(1 + sample.getDecimalFeatures().size() + sample.getBinaryFeatures().size());
+
+		final int[] featureIndices = scratch.featureIndices;
+		final double[] values = scratch.values;
+		int length = 0;
+
+		featureIndices[length] = 0;
+		values[length++] = 1.0;
+
+		for (final Entry<String, Double> entry : sample.getDecimalFeatures().entrySet()) {
+			final int index = dictionary.indexOf(entry.getKey());
+			if (index >= 0) {
+				featureIndices[length] = index;
+				values[length++] = entry.getValue();
+			}
+		}
+
+		for (final String binaryFeature : sample.getBinaryFeatures()) {
+			final int index = dictionary.indexOf(binaryFeature);
+			if (index >= 0) {
+				featureIndices[length] = index;
+				values[length++] = 1.0;
+			}
+		}
+
+		return length;
+	}
+
+	private double multiply(int classIndex, int[] featureIndices, double[] values, int length) {
+		final int startIndex = classIndex * numberOfFeatures;
+		double sum = 0.0;
+
+		switch (precision) {
+		case Float64:
+			for (int k = 0; k < length; k++)
+				sum += doubleWeights.get(startIndex + featureIndices[k]) * values[k];
+			return sum;
+		case Float32:
+			for (int k = 0; k < length; k++)
+				sum += floatWeights.get(startIndex + featureIndices[k]) * values[k];
+			return sum;
+		default:
+			for (int k = 0; k < length; k++)
+				sum += byteWeights.get(startIndex + featureIndices[k]) * values[k];
+			return sum * scales[classIndex];
+		}
+	}
+}
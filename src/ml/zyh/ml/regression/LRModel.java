@@ -1,13 +1,16 @@
 package zyh.ml.regression;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-import zyh.ml.data.IndexedSample;
 import zyh.ml.data.Sample;
 import zyh.ml.indexer.Indexer;
 import zyh.ml.indexer.OnePassIndexer;
+import zyh.ml.utils.Metrics;
+import zyh.ml.utils.ParallelEngine;
 
 public class LRModel implements Serializable {
 
@@ -24,44 +27,148 @@ public class LRModel implements Serializable {
 
 	private LRModel() {}
 
+	/**
+	 * Run batch predictions on the given engine, which may be shared with other models
+	 */
+	public void setEngine(ParallelEngine engine) {
+		logisticRegression.setEngine(engine);
+	}
+
+	/**
+	 * Shut down the default engines created by the model, e.g. for batch predictions. They are
+	 * created again when needed, engines given by setEngine or train are left to their owners.
+	 */
+	public void shutdown() {
+		logisticRegression.shutdown();
+		if (indexer instanceof OnePassIndexer)
+			((OnePassIndexer) indexer).shutdown();
+	}
+
 	public String predict(Sample sample) {
-		IndexedSample indexedSample = indexer.indexSample(sample);
-		int labelIndex = logisticRegression.predict(indexedSample);
-		String label = indexer.getLabels().get(labelIndex);
-		return label;
+		return indexer.getLabels().get(predictLabelIndex(sample, BatchPrediction.scratch()));
+	}
+
+	/**
+	 * Predict the labels of the samples in parallel
+	 * @param labels receives the label of each sample, at least as long as the samples
+	 */
+	public void predictBatch(List<Sample> samples, String[] labels) {
+		final List<String> labelNames = indexer.getLabels();
+
+		BatchPrediction.run(logisticRegression.getEngine(), samples, new BatchPrediction.Prediction() {
+			@Override
+			public void predict(Sample sample, int index, BatchPrediction.Scratch scratch) {
+				labels[index] = labelNames.get(predictLabelIndex(sample, scratch));
+			}
+		});
+	}
+
+	/**
+	 * Predict the probabilities of the samples in parallel
+	 * @param probabilities receives the probabilities of sample <i>i</i> from
+	 *        <i>i * numberOfLabels</i> on, in the order of {@link Indexer#getLabels()}
+	 */
+	public void predictProbabilities(List<Sample> samples, double[] probabilities) {
+		final int numberOfLabels = logisticRegression.numberOfClasses();
+
+		BatchPrediction.run(logisticRegression.getEngine(), samples, new BatchPrediction.Prediction() {
+			@Override
+			public void predict(Sample sample, int index, BatchPrediction.Scratch scratch) {
+				scratch.ensureCapacity(indexer.maximumNumberOfFeatures(sample));
+
+				final int length = indexer.indexSample(sample, scratch.featureIndices, scratch.values);
+
+				logisticRegression.probabilityPredict(scratch.featureIndices, scratch.values, length,
+						probabilities, index * numberOfLabels);
+			}
+		});
+	}
+
+	private int predictLabelIndex(Sample sample, BatchPrediction.Scratch scratch) {
+		scratch.ensureCapacity(indexer.maximumNumberOfFeatures(sample));
+
+		final int length = indexer.indexSample(sample, scratch.featureIndices, scratch.values);
+
+		return logisticRegression.predict(scratch.featureIndices, scratch.values, length);
 	}
 
 	public boolean trainModel(int iterations) {
-		if (indexer != null && weights != null)
-			return logisticRegression.fit(indexer.getIndexedSamples(), weights, iterations);
+		if (indexer != null && weights != null) {
+			double[] sampleWeights = new double[weights.size()];
+
+			for (int i = 0; i < sampleWeights.length; i++)
+				sampleWeights[i] = weights.get(i);
+
+			return logisticRegression.fit(indexer.getRows(), sampleWeights, iterations);
+		}
 		return false;
 	}
 
+	/**
+	 * Drop the training samples and weights, keeping the dictionary needed for prediction
+	 */
 	public void discardTrainingData() {
-		indexer = null;
+		indexer.discardSamples();
+		logisticRegression.discardTrainingData();
 		weights = null;
 	}
 
-	public static LRModel train(List<Sample> samples, List<Double> weights, int cutOff, int iterations) {
-		LRModel model = new LRModel();
+	/**
+	 * Drop the training data and freeze the dictionary of the indexer into a {@link zyh.ml.indexer.FrozenDictionary},
+	 * which takes less memory and is faster to look up. The model can only predict afterwards.
+	 */
+	public void freeze() {
+		discardTrainingData();
+		indexer.freeze();
+	}
+
+	/**
+	 * Write the model in the read-only format of {@link FrozenLRModel}
+	 */
+	public void export(File file, FrozenLRModel.Precision precision) throws IOException {
+		if (indexer.getFeatureNames().length != indexer.numberOfFeatures())
+			throw new IOException("Only models indexed with a dictionary can be exported.");
+		FrozenLRModel.write(file, precision, indexer.getLabels(), indexer.getFeatureNames(),
+				logisticRegression.getThetas(), logisticRegression.numberOfClasses());
+	}
+
+	public static LRModel train(List<Sample> samples, List<Double> weights, int cutOff, int iterations,
+			ParallelEngine engine) {
+		return train(samples, weights, cutOff, iterations, engine, null);
+	}
+
+	/**
+	 * @param metrics receives the timings of indexing and training and the iterations, or
+	 *        <b>null</b> to print the iterations
+	 */
+	public static LRModel train(List<Sample> samples, List<Double> weights, int cutOff, int iterations,
+			ParallelEngine engine, Metrics metrics) {
 		OnePassIndexer indexer = new OnePassIndexer();
 
+		if (engine != null)
+			indexer.setEngine(engine);
+		indexer.setMetrics(metrics);
 		indexer.collectFeatures(samples, cutOff);
 		indexer.indexSamples(samples);
+		indexer.shutdown();
 
-		model.indexer = indexer;
-		model.weights = weights;
-		model.logisticRegression = new LogisticRegression(
-				model.indexer.numberOfLabels(),
-				model.indexer.numberOfFeatures());
-
-		if (!model.trainModel(iterations))
-			return null;
+		return train(indexer, weights, iterations, engine, metrics);
+	}
 
-		return model;
+	/**
+	 * @param engine the engine to run training on, or <b>null</b> to use a default
+	 *        engine with one thread per available processor
+	 */
+	public static LRModel train(Indexer indexer, List<Double> weights, int iterations, ParallelEngine engine) {
+		return train(indexer, weights, iterations, engine, null);
 	}
 
-	public static LRModel train(Indexer indexer, List<Double> weights, int iterations) {
+	/**
+	 * @param metrics receives the timings of training and the iterations, or <b>null</b> to print
+	 *        the iterations
+	 */
+	public static LRModel train(Indexer indexer, List<Double> weights, int iterations, ParallelEngine engine,
+			Metrics metrics) {
 		LRModel model = new LRModel();
 
 		model.indexer = indexer;
@@ -69,11 +176,22 @@ public class LRModel implements Serializable {
 		model.logisticRegression = new LogisticRegression(
 				model.indexer.numberOfLabels(),
 				model.indexer.numberOfFeatures());
+		model.logisticRegression.setEngine(engine);
+		if (metrics != null)
+			model.logisticRegression.setMetrics(metrics);
 
-		if (!model.trainModel(iterations))
-			return null;
+		final boolean trained = model.trainModel(iterations);
 
-		return model;
+		model.logisticRegression.shutdown();
+		return trained ? model : null;
+	}
+
+	public static LRModel train(List<Sample> samples, List<Double> weights, int cutOff, int iterations) {
+		return train(samples, weights, cutOff, iterations, null);
+	}
+
+	public static LRModel train(Indexer indexer, List<Double> weights, int iterations) {
+		return train(indexer, weights, iterations, null);
 	}
 
 	public static LRModel train(List<Sample> samples, int cutOff, int iterations) {
@@ -81,7 +199,51 @@ public class LRModel implements Serializable {
 	}
 
 	public static LRModel train(Indexer indexer, int iterations) {
-		return train(indexer, uniformWeights(indexer.getIndexedSamples().size()), iterations);
+		return train(indexer, uniformWeights(indexer.numberOfSamples()), iterations);
+	}
+
+	/**
+	 * Train on an engine of the given threads, which is shut down afterwards. The model runs batch
+	 * predictions on a default engine of as many threads.
+	 */
+	public static LRModel train(List<Sample> samples, int cutOff, int iterations, int numberOfThreads) {
+		final ParallelEngine engine = new ParallelEngine(numberOfThreads);
+
+		try {
+			final LRModel model = train(samples, uniformWeights(samples.size()), cutOff, iterations, engine);
+
+			if (model != null)
+				((OnePassIndexer) model.indexer).setEngine(null);
+			return detach(model, numberOfThreads);
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Train on an engine of the given threads, which is shut down afterwards. The model runs batch
+	 * predictions on a default engine of as many threads.
+	 */
+	public static LRModel train(Indexer indexer, int iterations, int numberOfThreads) {
+		final ParallelEngine engine = new ParallelEngine(numberOfThreads);
+
+		try {
+			return detach(train(indexer, uniformWeights(indexer.numberOfSamples()), iterations, engine),
+					numberOfThreads);
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Replace the engine of training by a default engine of the given threads
+	 */
+	private static LRModel detach(LRModel model, int numberOfThreads) {
+		if (model != null) {
+			model.logisticRegression.setEngine(null);
+			model.logisticRegression.setNumberOfThreads(numberOfThreads);
+		}
+		return model;
 	}
 
 	private static List<Double> uniformWeights(int sampleSize) {
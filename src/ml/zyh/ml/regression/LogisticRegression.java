@@ -1,36 +1,106 @@
 package zyh.ml.regression;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import zyh.ml.data.IndexedSample;
+import zyh.ml.data.SparseDataset;
+import zyh.ml.data.SparseRows;
+import zyh.ml.optimization.DirectionalTargetFunction;
+import zyh.ml.optimization.L1RegularizedTargetFunction;
+import zyh.ml.optimization.Optimizer;
+import zyh.ml.optimization.SecondOrderTargetFunction;
 import zyh.ml.optimization.StochasticGradientDescent;
-import zyh.ml.optimization.TargetFunction;
+import zyh.ml.optimization.StochasticTargetFunction;
 import zyh.ml.utils.Logger;
+import zyh.ml.utils.Metrics;
+import zyh.ml.utils.ParallelEngine;
 import zyh.ml.utils.TaskDispatcher;
+import zyh.ml.utils.VectorMath;
 
 /**
- * L2 Regularized Multinomial Logistic Regression
+ * L2, L1 or Elastic Net Regularized Multinomial Logistic Regression
  * @author zhaoyuhan
  */
-public class LogisticRegression implements TargetFunction, Serializable {
+public class LogisticRegression implements StochasticTargetFunction, SecondOrderTargetFunction,
+		DirectionalTargetFunction, L1RegularizedTargetFunction, Serializable {
 
 	/**
 	 *
 	 */
-	private static final long serialVersionUID = 3666084436866079637L;
+	private static final long serialVersionUID = 5465385771211161197L;
 
 	private int numberOfClasses;
 
 	private int numberOfFeatures;
 
-	private int numberOfThreads = 10;
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	private transient ParallelEngine engine = null;
+
+	/* Whether the engine is the default one, created and shut down by this model */
+	private transient boolean ownsEngine = false;
+
+	/**
+	 * Set the number of threads used by the default engine, has no effect once an engine is in use
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	/**
+	 * Run evaluations on the given engine, which may be shared with other models
+	 */
+	public void setEngine(ParallelEngine engine) {
+		shutdown();
+		this.engine = engine;
+	}
+
+	public ParallelEngine getEngine() {
+		if (engine == null) {
+			engine = new ParallelEngine(numberOfThreads);
+			engine.setMetrics(metrics);
+			ownsEngine = true;
+		}
+		return engine;
+	}
+
+	/**
+	 * Shut down the default engine, if it has been created. It is created again when needed, engines
+	 * given by setEngine are left to their owners.
+	 */
+	public void shutdown() {
+		if (ownsEngine) {
+			engine.shutdown();
+			engine = null;
+			ownsEngine = false;
+		}
+	}
+
+	private transient Metrics metrics = null;
+
+	/**
+	 * Record the reductions of the evaluations, the idle time of the engine and the optimization
+	 * run by <code>fit</code> into the metrics. The engine records into the metrics set last.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+		if (engine != null)
+			engine.setMetrics(metrics);
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
 
 	private boolean usingL2Regularization = true;
 
@@ -40,90 +110,351 @@ public class LogisticRegression implements TargetFunction, Serializable {
 
 	private double regularizationCoefficient = 1.0;
 
-	private double[] thetas = null;
+	public void setRegularizationCoefficient(double regularizationCoefficient) {
+		this.regularizationCoefficient = regularizationCoefficient;
+	}
+
+	/* Together with L2 regularization this gives the elastic net */
+
+	private double l1RegularizationCoefficient = 0.0;
+
+	/**
+	 * Add <i>coefficient * |thetas|_1</i> to the target function. The L1 term is not part of
+	 * {@link #evaluate(double[], double[])}, the optimizer handles it (OWL-QN), which gives exact zeros.
+	 */
+	public void setL1RegularizationCoefficient(double l1RegularizationCoefficient) {
+		this.l1RegularizationCoefficient = l1RegularizationCoefficient;
+	}
+
+	@Override
+	public double l1RegularizationCoefficient() {
+		return l1RegularizationCoefficient;
+	}
+
+	/* Written by writeObject, sparsely if most of them are zeros */
+	private transient double[] thetas = null;
 
 	private Logger logger = new Logger(1);
 
-	private int finishedThreads;
-	private ThreadStatus threadStatus = ThreadStatus.ShouldWait;
+	/* Training state, not needed for prediction */
+
+	private transient double logLikelihood;
+	private transient int correctLabels;
+	private transient int evaluatedSamples;
 
-	private double logLikelihood;
-	private int correctLabels;
-	private double[] gradient;
+	private transient SparseRows trainingSamples;
+	private transient double[] sampleWeights;
 
-	private List<IndexedSample> trainingSamples;
-	private List<Double> sampleWeights;
+	private int chunksPerThread = 1;
 
-	private List<Thread> threads = new ArrayList<>();
+	/**
+	 * Split the samples into more chunks than threads so that idle threads pick up the remaining
+	 * chunks. Chunks are balanced by the number of non-zero features either way.
+	 */
+	public void setChunksPerThread(int chunksPerThread) {
+		this.chunksPerThread = chunksPerThread;
+	}
 
-	private Lock lock;
-	private Condition workerCondition;
-	private Condition masterCondition;
+	/* Subsets with fewer samples per thread are evaluated on the calling thread */
+	private static final int MINIMUM_SAMPLES_PER_CHUNK = 2048;
+
+	/* Largest array the virtual machines allocate */
+	private static final long MAXIMUM_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private transient TaskDispatcher dispatcher;
+	/* Sums of the chunks of the dispatcher along the line, reused by every step */
+	private transient double[] chunkLogLikelihoods;
+	private transient double[] chunkSlopes;
+	private transient int[] chunkCorrectLabels;
+	private transient Accumulator[] accumulators;
+	private transient BlockingQueue<Accumulator> idleAccumulators;
+	private transient int generation;
+
+	/* Probabilities of the samples at hessianArguments, filled in by full evaluations once allocated */
+	private transient double[] hessianProbabilities;
+	private transient double[] hessianArguments;
+
+	/*
+	 * Scores of the samples at marginArguments, and their products with the direction of the line,
+	 * by sample and class, filled in by setDirection. Scores along the line are
+	 * margins - stepSize * directionMargins, so trial steps don't read the samples. marginArguments
+	 * is null until the margins are filled in.
+	 */
+	private transient double[] margins;
+	private transient double[] marginArguments;
+	private transient int[] marginLabels;
+	private transient double[] directionMargins;
+	private transient double argumentsDotArguments;
+	private transient double argumentsDotDirection;
+	private transient double directionDotDirection;
+
+	/*
+	 * The line when the margins would not fit in an array, along which steps are evaluated at
+	 * lineArguments - stepSize * lineDirection into stepArguments and stepGradient
+	 */
+	private transient double[] lineArguments;
+	private transient double[] lineDirection;
+	private transient double[] stepArguments;
+	private transient double[] stepGradient;
+	private transient double stepResult;
+
+	/* Probabilities, log likelihood etc. of the last step along the line, for its gradient */
+	private transient double[] stepProbabilities;
+	private transient double probabilityStepSize = Double.NaN;
+	private transient double stepLogLikelihood;
+	private transient int stepCorrectLabels;
+	private transient double stepSlope;
 
 	public LogisticRegression(int numberOfClasses, int numberOfFeatures) {
 		this.numberOfClasses = numberOfClasses;
 		this.numberOfFeatures = numberOfFeatures;
 	}
 
-	private enum ThreadStatus {
-		ShouldWait, ShouldStart, ShouldStop;
+	/**
+	 * Gradient, log likelihood and accuracy of some chunks of samples. A task borrows an idle
+	 * accumulator and accumulates into it without locking, then the accumulators are combined
+	 * with a tree reduction. Accumulators not borrowed during an evaluation keep an old
+	 * generation and count as zero.
+	 */
+	private static class Accumulator {
+		public double[] gradient;
+		public double logLikelihood;
+		public int correctLabels;
+		public int generation = -1;
+		/* Scratch for rows that are not in memory, and for the probabilities of one sample */
+		public SparseRows.Block rows = new SparseRows.Block();
+		public double[] probabilities;
+
+		public void reset(int generation) {
+			Arrays.fill(gradient, 0.0);
+			logLikelihood = 0.0;
+			correctLabels = 0;
+			this.generation = generation;
+		}
+
+		public void add(Accumulator other, int generation) {
+			if (other.generation != generation)
+				return;
+
+			final double[] otherGradient = other.gradient;
+
+			if (this.generation != generation) {
+				System.arraycopy(otherGradient, 0, gradient, 0, gradient.length);
+				logLikelihood = other.logLikelihood;
+				correctLabels = other.correctLabels;
+				this.generation = generation;
+				return;
+			}
+
+			for (int j = 0; j < gradient.length; j++)
+				gradient[j] += otherGradient[j];
+			logLikelihood += other.logLikelihood;
+			correctLabels += other.correctLabels;
+		}
 	}
 
-	private class Worker implements Runnable {
+	private interface Kernel {
+		/**
+		 * @param rows a block holding row i
+		 */
+		public void accumulate(Accumulator accumulator, SparseRows.Block rows, int i);
+	}
 
-		public Lock lock;
-		public Condition workerCondition;
-		public Condition masterCondition;
-		public Object writeLock;
-		public int beginIndex;
-		public int endIndex;
+	/**
+	 * Run the kernel on the samples from begin to end - 1, or on sampleIndices[begin] to
+	 * sampleIndices[end - 1], reading the rows block by block
+	 */
+	private void accumulate(Accumulator accumulator, Kernel kernel, int[] sampleIndices, int begin, int end) {
+		if (sampleIndices != null) {
+			for (int position = begin; position < end; position++) {
+				final int i = sampleIndices[position];
 
-		@Override
-		public void run() {
-			while (true) {
-				lock.lock();
+				kernel.accumulate(accumulator, trainingSamples.rows(i, i + 1, accumulator.rows), i);
+			}
+			return;
+		}
 
-				try {
-					while (threadStatus == ThreadStatus.ShouldWait)
-						workerCondition.await();
-					lock.unlock();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		int row = begin;
 
-				if (threadStatus == ThreadStatus.ShouldStop)
-					break;
+		while (row < end) {
+			final SparseRows.Block rows = trainingSamples.rows(row, end, accumulator.rows);
+			final int blockEnd = Math.min(end, rows.endRow);
 
-				for (int i = beginIndex; i < endIndex; i++) {
-					final IndexedSample sample = trainingSamples.get(i);
-					final double[] probabilities = probabilityPredict(sample);
-					final int predictedLabel = getPredictedLabel(probabilities);
+			for (int i = row; i < blockEnd; i++)
+				kernel.accumulate(accumulator, rows, i);
+			row = blockEnd;
+		}
+	}
 
-					synchronized(writeLock) {
-						if (predictedLabel == sample.label)
-							correctLabels++;
-						logLikelihood -= sampleWeights.get(i) * Math.log(probabilities[sample.label]);
-						for (int j = numberOfClasses - 2; j >= 0; j--) {
-							int startIndex = j * numberOfFeatures;
-							double multiplier = -probabilities[j];
+	private void accumulate(Kernel kernel, int[] sampleIndices, int begin, int end) throws InterruptedException {
+		final Accumulator accumulator = idleAccumulators.take();
 
-							if (sample.label == j)
-								multiplier += 1.0;
+		try {
+			if (accumulator.generation != generation)
+				accumulator.reset(generation);
+			accumulate(accumulator, kernel, sampleIndices, begin, end);
+		} finally {
+			idleAccumulators.add(accumulator);
+		}
+	}
 
-							for (Entry<Integer, Double> entry : sample.features.entrySet())
-								gradient[startIndex + entry.getKey()] -= sampleWeights.get(i) * entry.getValue() * multiplier;
-						}
-					}
+	/**
+	 * Run the kernel on the chunks of the dispatcher and reduce the accumulators into output
+	 * @param dispatcher chunks relative to begin, or <b>null</b> to run on the calling thread
+	 */
+	private Accumulator accumulateChunks(ParallelEngine engine, TaskDispatcher dispatcher, int[] sampleIndices,
+			int begin, int end, double[] output, Kernel kernel) {
+		generation++;
+		/* Accumulator #0 accumulates directly into the output */
+		accumulators[0].gradient = output;
+		accumulators[0].generation = -1;
+
+		if (dispatcher == null) {
+			accumulators[0].reset(generation);
+			accumulate(accumulators[0], kernel, sampleIndices, begin, end);
+		}
+		else {
+			engine.run(dispatcher.size(), new ParallelEngine.Task() {
+				@Override
+				public void run(int taskIndex) throws InterruptedException {
+					accumulate(kernel, sampleIndices, begin + dispatcher.begin(taskIndex),
+							begin + dispatcher.end(taskIndex));
 				}
+			});
 
-				lock.lock();
-				if (++finishedThreads == numberOfThreads) {
-					threadStatus = ThreadStatus.ShouldWait;
-					masterCondition.signal();
-				}
-				lock.unlock();
+			final long start = (metrics != null) ? System.nanoTime() : 0;
+
+			reduce(engine);
+			if (metrics != null)
+				metrics.record(Metrics.Phase.REDUCTION, System.nanoTime() - start);
+		}
+
+		return accumulators[0];
+	}
+
+	/**
+	 * Add the log likelihood and gradient of sample i
+	 * @param probabilityCache stores the probabilities of all classes but the last one, or <b>null</b>
+	 */
+	private void accumulateSample(Accumulator accumulator, SparseRows.Block rows, int i, double[] probabilityCache) {
+		final int row = i - rows.firstRow;
+		final int rowBegin = rows.rowOffsets[row];
+		final int rowEnd = rows.rowOffsets[row + 1];
+		final double[] scores = accumulator.probabilities;
+		final int lastClass = numberOfClasses - 1;
+
+		for (int j = 0; j < lastClass; j++)
+			scores[j] = multiply(thetas, j, rows.featureIndices, rows.values, rowBegin, rowEnd);
+
+		accumulateScores(accumulator, rows, i, probabilityCache);
+	}
+
+	/**
+	 * Add the gradient of sample i at the step along the line, moving its margins to the step
+	 * @param cached whether the probabilities of the step are in stepProbabilities, in which case
+	 *        the log likelihood is not accumulated
+	 */
+	private void accumulateStep(Accumulator accumulator, SparseRows.Block rows, int i, double stepSize,
+			boolean cached) {
+		final double[] scores = accumulator.probabilities;
+		final int lastClass = numberOfClasses - 1;
+		final int offset = i * lastClass;
+
+		for (int j = 0; j < lastClass; j++)
+			margins[offset + j] -= stepSize * directionMargins[offset + j];
+
+		if (cached) {
+			System.arraycopy(stepProbabilities, offset, scores, 0, lastClass);
+			accumulateGradient(accumulator, rows, i);
+		}
+		else {
+			System.arraycopy(margins, offset, scores, 0, lastClass);
+			accumulateScores(accumulator, rows, i, null);
+		}
+	}
+
+	/**
+	 * Continue with the scores of sample i in the probabilities of the accumulator, which give the
+	 * predicted label, then the log likelihood by log-sum-exp and the probabilities for the gradient
+	 */
+	private void accumulateScores(Accumulator accumulator, SparseRows.Block rows, int i, double[] probabilityCache) {
+		final int row = i - rows.firstRow;
+		final double[] probabilities = accumulator.probabilities;
+		final int label = rows.labels[row];
+		final double weight = sampleWeights[i];
+
+		final int lastClass = numberOfClasses - 1;
+		double maxScore = Double.NEGATIVE_INFINITY;
+		int predictedLabel = lastClass;
+
+		for (int j = 0; j < lastClass; j++) {
+			if (probabilities[j] > maxScore) {
+				maxScore = probabilities[j];
+				predictedLabel = j;
 			}
 		}
+
+		final double labelScore = (label < lastClass) ? probabilities[label] : 0.0;
+		final double logSum = Softmax.normalize(probabilities, 0, numberOfClasses);
+
+		if (probabilityCache != null)
+			System.arraycopy(probabilities, 0, probabilityCache, i * lastClass, lastClass);
+		if (((maxScore >= 0.0) ? predictedLabel : lastClass) == label)
+			accumulator.correctLabels++;
+		accumulator.logLikelihood += weight * (logSum - labelScore);
+		accumulateGradient(accumulator, rows, i);
+	}
+
+	/**
+	 * Add the gradient of sample i from the probabilities of the classes in the accumulator
+	 */
+	private void accumulateGradient(Accumulator accumulator, SparseRows.Block rows, int i) {
+		final int row = i - rows.firstRow;
+		final int rowBegin = rows.rowOffsets[row];
+		final int rowEnd = rows.rowOffsets[row + 1];
+		final int[] featureIndices = rows.featureIndices;
+		final double[] values = rows.values;
+		final double[] gradient = accumulator.gradient;
+		final double[] probabilities = accumulator.probabilities;
+		final int label = rows.labels[row];
+		final double weight = sampleWeights[i];
+
+		for (int j = numberOfClasses - 2; j >= 0; j--) {
+			int startIndex = j * numberOfFeatures;
+			double multiplier = -probabilities[j];
+
+			if (label == j)
+				multiplier += 1.0;
+			multiplier *= weight;
+
+			for (int k = rowBegin; k < rowEnd; k++)
+				gradient[startIndex + featureIndices[k]] -= values[k] * multiplier;
+		}
+	}
+
+	/**
+	 * In round <i>r</i>, accumulator <i>i</i> adds accumulator <i>i + 2^r</i> if <i>i</i> is
+	 * a multiple of <i>2^(r+1)</i>, so the totals end up in accumulator #0. The pairs of
+	 * each round are added in parallel.
+	 */
+	private void reduce(ParallelEngine engine) {
+		final int numberOfAccumulators = accumulators.length;
+
+		for (int stride = 1; stride < numberOfAccumulators; stride <<= 1) {
+			final int step = stride << 1;
+			final int offset = stride;
+			final int numberOfPairs = (numberOfAccumulators - stride + step - 1) / step;
+
+			engine.run(numberOfPairs, new ParallelEngine.Task() {
+				@Override
+				public void run(int taskIndex) {
+					accumulators[taskIndex * step].add(accumulators[taskIndex * step + offset], generation);
+				}
+			});
+		}
+
+		if (accumulators[0].generation != generation)
+			accumulators[0].reset(generation);
 	}
 
 	@Override
@@ -141,115 +472,599 @@ public class LogisticRegression implements TargetFunction, Serializable {
 
 	@Override
 	public void updateArguments(double[] arguments) {
-		lock.lock();
-		threadStatus = ThreadStatus.ShouldStop;
-		workerCondition.signalAll();
-		lock.unlock();
-
-		for (final Thread thread : threads) {
-			try {
-				thread.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-		threads.clear();
-		workerCondition = null;
-		masterCondition = null;
-		lock = null;
-
+		accumulators = null;
+		idleAccumulators = null;
+		dispatcher = null;
+		chunkLogLikelihoods = null;
+		chunkSlopes = null;
+		chunkCorrectLabels = null;
+		hessianProbabilities = null;
+		hessianArguments = null;
+		margins = null;
+		marginArguments = null;
+		marginLabels = null;
+		directionMargins = null;
+		stepProbabilities = null;
+		lineArguments = null;
+		lineDirection = null;
+		stepArguments = null;
+		stepGradient = null;
 		thetas = arguments;
 	}
 
+	@Override
+	public int numberOfSamples() {
+		return trainingSamples.numberOfRows();
+	}
+
 	@Override
 	public double evaluate(double[] arguments, double[] gradient) {
-		if (threads.size() == 0) {
-			TaskDispatcher dispatcher = new TaskDispatcher(trainingSamples.size(), numberOfThreads);
-			Object writeLock = new Object();
-			lock = new ReentrantLock();
-			workerCondition = lock.newCondition();
-			masterCondition = lock.newCondition();
-
-			for (int i = 0; i < numberOfThreads; i++) {
-				Worker worker = new Worker();
-
-				worker.writeLock = writeLock;
-				worker.lock = lock;
-				worker.workerCondition = workerCondition;
-				worker.masterCondition = masterCondition;
-				worker.beginIndex = dispatcher.begin(i);
-				worker.endIndex = dispatcher.end(i);
-
-				threads.add(new Thread(worker));
+		final ParallelEngine engine = getEngine();
+
+		prepareAccumulators(engine, gradient.length);
+		prepareDispatcher();
+
+		return evaluate(engine, arguments, gradient, null, dispatcher, 0, trainingSamples.numberOfRows(),
+				hessianProbabilities);
+	}
+
+	private void prepareDispatcher() {
+		if (dispatcher != null)
+			return;
+
+		final int numberOfChunks = Math.min(accumulators.length * chunksPerThread, trainingSamples.numberOfRows());
+
+		dispatcher = TaskDispatcher.balanced(trainingSamples.numberOfRows(), new TaskDispatcher.Costs() {
+			@Override
+			public long offset(int task) {
+				return trainingSamples.rowOffset(task);
 			}
+		}, Math.max(1, numberOfChunks));
+		chunkLogLikelihoods = new double[dispatcher.size()];
+		chunkSlopes = new double[dispatcher.size()];
+		chunkCorrectLabels = new int[dispatcher.size()];
+	}
+
+	/**
+	 * Allocate the margins, unless there are too many samples and classes for an array
+	 * @return whether the margins are allocated
+	 */
+	private boolean prepareMargins() {
+		if (margins != null)
+			return true;
+
+		final int numberOfRows = trainingSamples.numberOfRows();
+		final long length = (long) numberOfRows * (numberOfClasses - 1);
+
+		if (length > MAXIMUM_ARRAY_LENGTH)
+			return false;
+
+		margins = new double[(int) length];
+		directionMargins = new double[(int) length];
+		stepProbabilities = new double[(int) length];
+		marginLabels = new int[numberOfRows];
+		marginArguments = null;
+		return true;
+	}
+
+	@Override
+	public double evaluate(double[] arguments, double[] gradient, int[] sampleIndices, int begin, int end) {
+		final ParallelEngine engine = getEngine();
+
+		prepareAccumulators(engine, gradient.length);
+
+		final int numberOfChunks = Math.min(accumulators.length, (end - begin) / MINIMUM_SAMPLES_PER_CHUNK);
+
+		return evaluate(engine, arguments, gradient, sampleIndices,
+				(numberOfChunks > 1) ? new TaskDispatcher(end - begin, numberOfChunks) : null, begin, end, null);
+	}
+
+	private void prepareAccumulators(ParallelEngine engine, int numberOfArguments) {
+		if (accumulators != null)
+			return;
 
-			for (final Thread thread : threads)
-				thread.start();
+		final int numberOfThreads = Math.max(1, Math.min(engine.getParallelism(), trainingSamples.numberOfRows()));
+
+		accumulators = new Accumulator[numberOfThreads];
+		idleAccumulators = new ArrayBlockingQueue<>(numberOfThreads);
+
+		for (int i = 0; i < numberOfThreads; i++) {
+			accumulators[i] = new Accumulator();
+			accumulators[i].probabilities = new double[numberOfClasses];
+			if (i > 0)
+				accumulators[i].gradient = new double[numberOfArguments];
+			idleAccumulators.add(accumulators[i]);
 		}
+	}
 
-		lock.lock();
-		logLikelihood = 0.0;
-		correctLabels = 0;
-		finishedThreads = 0;
+	/**
+	 * Evaluate on the samples from begin to end - 1, or on sampleIndices[begin] to sampleIndices[end - 1]
+	 * @param dispatcher chunks relative to begin, or <b>null</b> to evaluate on the calling thread
+	 */
+	private double evaluate(ParallelEngine engine, double[] arguments, double[] gradient,
+			int[] sampleIndices, TaskDispatcher dispatcher, int begin, int end, double[] probabilityCache) {
 		this.thetas = arguments;
-		this.gradient = gradient;
-		for (int i = 0; i < gradient.length; i++)
-			gradient[i] = 0.0;
-		threadStatus = ThreadStatus.ShouldStart;
 
-		try {
-			workerCondition.signalAll();
-			while (finishedThreads < numberOfThreads)
-				masterCondition.await();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		final Accumulator accumulator = accumulateChunks(engine, dispatcher, sampleIndices, begin, end, gradient,
+				new Kernel() {
+			@Override
+			public void accumulate(Accumulator accumulator, SparseRows.Block rows, int i) {
+				accumulateSample(accumulator, rows, i, probabilityCache);
+			}
+		});
+
+		if (probabilityCache != null)
+			System.arraycopy(arguments, 0, hessianArguments, 0, arguments.length);
+
+		return finishEvaluation(arguments, gradient, accumulator.logLikelihood, accumulator.correctLabels, begin, end);
+	}
+
+	/**
+	 * Scale the accumulated log likelihood and gradient and add the regularization
+	 */
+	private double finishEvaluation(double[] arguments, double[] gradient, double sampleLogLikelihood,
+			int sampleCorrectLabels, int begin, int end) {
+		/* Scale the subset up to the whole training set */
+		final int numberOfRows = trainingSamples.numberOfRows();
+		final double scale = (double) numberOfRows * numberOfRows / (end - begin);
+
+		logLikelihood = sampleLogLikelihood;
+		correctLabels = sampleCorrectLabels;
+		evaluatedSamples = end - begin;
+
+		VectorMath.scale(scale, gradient);
+		logLikelihood = logLikelihood * scale + addRegularization(arguments, gradient);
+
+		return logLikelihood;
+	}
+
+	/**
+	 * Add the gradient of the L2 regularization
+	 * @return the regularization term of the target function
+	 */
+	double addRegularization(double[] arguments, double[] gradient) {
+		if (!usingL2Regularization)
+			return 0.0;
+
+		VectorMath.axpy(2 * regularizationCoefficient, arguments, gradient);
+		return regularizationCoefficient * VectorMath.dot(arguments, arguments);
+	}
+
+	/**
+	 * Evaluate the weighted log likelihood of the training samples and its gradient, neither scaled
+	 * nor regularized, so that the sums over several parts of a dataset can be combined as in
+	 * {@link #evaluate(double[], double[])}
+	 */
+	double evaluatePart(double[] arguments, double[] gradient) {
+		final ParallelEngine engine = getEngine();
+
+		prepareAccumulators(engine, gradient.length);
+		prepareDispatcher();
+		this.thetas = arguments;
+
+		final Accumulator accumulator = accumulateChunks(engine, dispatcher, null, 0, trainingSamples.numberOfRows(),
+				gradient, new Kernel() {
+			@Override
+			public void accumulate(Accumulator accumulator, SparseRows.Block rows, int i) {
+				accumulateSample(accumulator, rows, i, null);
+			}
+		});
+
+		logLikelihood = accumulator.logLikelihood;
+		correctLabels = accumulator.correctLabels;
+		evaluatedSamples = trainingSamples.numberOfRows();
+
+		return logLikelihood;
+	}
+
+	/**
+	 * @return number of samples predicted correctly by the last evaluation
+	 */
+	int correctLabels() {
+		return correctLabels;
+	}
+
+	/**
+	 * Compute the products of the samples with the direction, and with the arguments unless they
+	 * are those the margins were moved to by the last step, in one pass over the samples. Without
+	 * room for the margins, steps are evaluated as usual.
+	 */
+	@Override
+	public void setDirection(double[] arguments, double[] direction) {
+		final ParallelEngine engine = getEngine();
+		final int lastClass = numberOfClasses - 1;
+
+		prepareAccumulators(engine, arguments.length);
+		prepareDispatcher();
+		probabilityStepSize = Double.NaN;
+
+		if (!prepareMargins()) {
+			if (lineArguments == null) {
+				lineArguments = new double[arguments.length];
+				stepArguments = new double[arguments.length];
+				stepGradient = new double[arguments.length];
+			}
+			System.arraycopy(arguments, 0, lineArguments, 0, arguments.length);
+			lineDirection = direction;
+			return;
+		}
+
+		final boolean marginsValid = (marginArguments != null) && Arrays.equals(arguments, marginArguments);
+
+		if (marginArguments == null)
+			marginArguments = new double[arguments.length];
+		this.thetas = arguments;
+
+		runRows(engine, new Kernel() {
+			@Override
+			public void accumulate(Accumulator accumulator, SparseRows.Block rows, int i) {
+				final int row = i - rows.firstRow;
+				final int rowBegin = rows.rowOffsets[row];
+				final int rowEnd = rows.rowOffsets[row + 1];
+
+				for (int j = 0; j < lastClass; j++) {
+					directionMargins[i * lastClass + j] = multiply(direction, j, rows.featureIndices, rows.values,
+							rowBegin, rowEnd);
+					if (!marginsValid)
+						margins[i * lastClass + j] = multiply(arguments, j, rows.featureIndices, rows.values,
+								rowBegin, rowEnd);
+				}
+				if (!marginsValid)
+					marginLabels[i] = rows.labels[row];
+			}
+		});
+
+		if (!marginsValid)
+			System.arraycopy(arguments, 0, marginArguments, 0, arguments.length);
+
+		argumentsDotArguments = VectorMath.dot(arguments, arguments);
+		argumentsDotDirection = VectorMath.dot(arguments, direction);
+		directionDotDirection = VectorMath.dot(direction, direction);
+	}
+
+	/**
+	 * Evaluate from the cached margins, without reading the samples. The probabilities are kept for
+	 * the gradient at this step.
+	 */
+	@Override
+	public double evaluateStep(double stepSize) {
+		if (margins == null) {
+			VectorMath.axpy(-stepSize, lineDirection, lineArguments, stepArguments);
+			stepResult = evaluate(stepArguments, stepGradient);
+			stepSlope = -VectorMath.dot(stepGradient, lineDirection);
+			probabilityStepSize = stepSize;
+			return stepResult;
 		}
 
-		lock.unlock();
+		final ParallelEngine engine = getEngine();
+		final int numberOfChunks = dispatcher.size();
+		final int lastClass = numberOfClasses - 1;
+		final double[] chunkLogLikelihoods = this.chunkLogLikelihoods;
+		final double[] chunkSlopes = this.chunkSlopes;
+		final int[] chunkCorrectLabels = this.chunkCorrectLabels;
+
+		engine.run(numberOfChunks, new ParallelEngine.Task() {
+			@Override
+			public void run(int taskIndex) throws InterruptedException {
+				final Accumulator accumulator = idleAccumulators.take();
 
-		for (int i = 0; i < gradient.length; i++)
-			gradient[i] *=  trainingSamples.size();
+				try {
+					final double[] probabilities = accumulator.probabilities;
+					double logLikelihood = 0.0;
+					double slope = 0.0;
+					int correctLabels = 0;
+
+					for (int i = dispatcher.begin(taskIndex); i < dispatcher.end(taskIndex); i++) {
+						final int offset = i * lastClass;
+						final int label = marginLabels[i];
+						double maxScore = Double.NEGATIVE_INFINITY;
+						int predictedLabel = lastClass;
+
+						for (int j = 0; j < lastClass; j++) {
+							probabilities[j] = margins[offset + j] - stepSize * directionMargins[offset + j];
+							if (probabilities[j] > maxScore) {
+								maxScore = probabilities[j];
+								predictedLabel = j;
+							}
+						}
 
-		logLikelihood *= trainingSamples.size();
+						final double labelScore = (label < lastClass) ? probabilities[label] : 0.0;
+						final double labelDirection = (label < lastClass) ? directionMargins[offset + label] : 0.0;
+						final double logSum = Softmax.normalize(probabilities, 0, numberOfClasses);
+						double expectedDirection = 0.0;
+
+						for (int j = 0; j < lastClass; j++) {
+							stepProbabilities[offset + j] = probabilities[j];
+							expectedDirection += probabilities[j] * directionMargins[offset + j];
+						}
+
+						/* Scores decrease by stepSize times the direction margins */
+						logLikelihood += sampleWeights[i] * (logSum - labelScore);
+						slope += sampleWeights[i] * (labelDirection - expectedDirection);
+						if (((maxScore >= 0.0) ? predictedLabel : lastClass) == label)
+							correctLabels++;
+					}
+
+					chunkLogLikelihoods[taskIndex] = logLikelihood;
+					chunkSlopes[taskIndex] = slope;
+					chunkCorrectLabels[taskIndex] = correctLabels;
+				} finally {
+					idleAccumulators.add(accumulator);
+				}
+			}
+		});
+
+		final int numberOfRows = trainingSamples.numberOfRows();
+		double result = 0.0;
+		double slope = 0.0;
+
+		correctLabels = 0;
+		for (int i = 0; i < numberOfChunks; i++) {
+			result += chunkLogLikelihoods[i];
+			slope += chunkSlopes[i];
+			correctLabels += chunkCorrectLabels[i];
+		}
+		probabilityStepSize = stepSize;
+		stepLogLikelihood = result;
+		stepCorrectLabels = correctLabels;
+		evaluatedSamples = numberOfRows;
+		result *= numberOfRows;
+		slope *= numberOfRows;
 
 		if (usingL2Regularization) {
-			double l2reg = 0.0;
+			result += regularizationCoefficient * (argumentsDotArguments - 2 * stepSize * argumentsDotDirection
+					+ stepSize * stepSize * directionDotDirection);
+			slope += regularizationCoefficient * (2 * stepSize * directionDotDirection - 2 * argumentsDotDirection);
+		}
+
+		logLikelihood = result;
+		stepSlope = slope;
+
+		return result;
+	}
 
-			for (int i = 0; i < arguments.length; i++)
-				l2reg += arguments[i] * arguments[i];
+	@Override
+	public double stepSlope() {
+		return stepSlope;
+	}
+
+	/**
+	 * Compute the gradient from the cached margins, and from the probabilities if the step is the
+	 * last evaluated one, reading the samples once without multiplying them with the arguments
+	 */
+	@Override
+	public double evaluateAtStep(double stepSize, double[] newArguments, double[] gradient) {
+		final ParallelEngine engine = getEngine();
+		final int numberOfRows = trainingSamples.numberOfRows();
+		final boolean cached = (stepSize == probabilityStepSize);
+
+		if (margins == null) {
+			probabilityStepSize = Double.NaN;
+			if (!cached)
+				return evaluate(newArguments, gradient);
+			System.arraycopy(stepGradient, 0, gradient, 0, gradient.length);
+			this.thetas = newArguments;
+			return stepResult;
+		}
+
+		this.thetas = newArguments;
+
+		final Accumulator accumulator = accumulateChunks(engine, dispatcher, null, 0, numberOfRows, gradient,
+				new Kernel() {
+			@Override
+			public void accumulate(Accumulator accumulator, SparseRows.Block rows, int i) {
+				accumulateStep(accumulator, rows, i, stepSize, cached);
+			}
+		});
+
+		probabilityStepSize = Double.NaN;
+		System.arraycopy(newArguments, 0, marginArguments, 0, newArguments.length);
+
+		if (cached)
+			return finishEvaluation(newArguments, gradient, stepLogLikelihood, stepCorrectLabels, 0, numberOfRows);
+		return finishEvaluation(newArguments, gradient, accumulator.logLikelihood, accumulator.correctLabels,
+				0, numberOfRows);
+	}
+
+	/**
+	 * Run the kernel on every row without accumulating, e.g. to fill per-row caches
+	 */
+	private void runRows(ParallelEngine engine, Kernel kernel) {
+		engine.run(dispatcher.size(), new ParallelEngine.Task() {
+			@Override
+			public void run(int taskIndex) throws InterruptedException {
+				final Accumulator accumulator = idleAccumulators.take();
+
+				try {
+					accumulate(accumulator, kernel, null, dispatcher.begin(taskIndex), dispatcher.end(taskIndex));
+				} finally {
+					idleAccumulators.add(accumulator);
+				}
+			}
+		});
+	}
 
-			for (int i = 0; i < gradient.length; i++)
-				gradient[i] += 2 * regularizationCoefficient * arguments[i];
+	@Override
+	public void hessianVectorMultiply(double[] arguments, double[] vector, double[] result) {
+		final ParallelEngine engine = getEngine();
+
+		/* Probabilities are refreshed by a full evaluation, using result as scratch */
+		if (hessianProbabilities == null) {
+			final long length = (long) trainingSamples.numberOfRows() * (numberOfClasses - 1);
+
+			if (length > MAXIMUM_ARRAY_LENGTH)
+				throw new IllegalStateException(String.format(
+						"Probabilities of %d samples and %d classes don't fit in an array, use l-BFGS instead.",
+						trainingSamples.numberOfRows(), numberOfClasses));
+			hessianProbabilities = new double[(int) length];
+			hessianArguments = new double[arguments.length];
+			evaluate(arguments, result);
+		}
+		else if (!Arrays.equals(arguments, hessianArguments)) {
+			evaluate(arguments, result);
+		}
+
+		accumulateChunks(engine, dispatcher, null, 0, trainingSamples.numberOfRows(), result, new Kernel() {
+			@Override
+			public void accumulate(Accumulator accumulator, SparseRows.Block rows, int i) {
+				accumulateHessianVector(accumulator, vector, rows, i);
+			}
+		});
+
+		final double scale = trainingSamples.numberOfRows();
 
-			logLikelihood += regularizationCoefficient * l2reg;
+		VectorMath.scale(scale, result);
+		if (usingL2Regularization)
+			VectorMath.axpy(2 * regularizationCoefficient, vector, result);
+	}
+
+	/**
+	 * For each sample, the Hessian of the log likelihood multiplied by the vector is
+	 * <i>p_j * (u_j - sum_k p_k * u_k) * x</i> for class <i>j</i>, where <i>u_j</i> is the product
+	 * of the sample <i>x</i> and the part of the vector for class <i>j</i>.
+	 */
+	private void accumulateHessianVector(Accumulator accumulator, double[] vector, SparseRows.Block rows, int i) {
+		final int row = i - rows.firstRow;
+		final int rowBegin = rows.rowOffsets[row];
+		final int rowEnd = rows.rowOffsets[row + 1];
+		final int[] featureIndices = rows.featureIndices;
+		final double[] values = rows.values;
+		final double[] result = accumulator.gradient;
+		final int numberOfFreeClasses = numberOfClasses - 1;
+		final int probabilityOffset = i * numberOfFreeClasses;
+		final double[] products = accumulator.probabilities;
+		double sum = 0.0;
+
+		for (int j = 0; j < numberOfFreeClasses; j++) {
+			final int startIndex = j * numberOfFeatures;
+			double product = 0.0;
+
+			for (int k = rowBegin; k < rowEnd; k++)
+				product += vector[startIndex + featureIndices[k]] * values[k];
+			products[j] = product;
+			sum += hessianProbabilities[probabilityOffset + j] * product;
 		}
 
-		return logLikelihood;
+		for (int j = 0; j < numberOfFreeClasses; j++) {
+			final int startIndex = j * numberOfFeatures;
+			final double multiplier = sampleWeights[i] * hessianProbabilities[probabilityOffset + j] * (products[j] - sum);
+
+			for (int k = rowBegin; k < rowEnd; k++)
+				result[startIndex + featureIndices[k]] += values[k] * multiplier;
+		}
 	}
 
 	@Override
 	public List<String> additionalInfoTitles() {
 		List<String> titles = new ArrayList<>();
 		titles.add("Accuracy");
+		if (l1RegularizationCoefficient > 0)
+			titles.add("Non-zeros");
 		return titles;
 	}
 
 	@Override
 	public void setAdditionalInfo(Map<String, Double> infoMap) {
-		infoMap.put("Accuracy", ((double) correctLabels) / trainingSamples.size());
+		infoMap.put("Accuracy", ((double) correctLabels) / evaluatedSamples);
+		if (l1RegularizationCoefficient > 0)
+			infoMap.put("Non-zeros", (double) numberOfNonZeros(thetas));
+	}
+
+	private static int numberOfNonZeros(double[] array) {
+		int nonZeros = 0;
+
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] != 0.0)
+				nonZeros++;
+		}
+
+		return nonZeros;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+
+		if (thetas == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		final int nonZeros = numberOfNonZeros(thetas);
+		final boolean sparse = (long) nonZeros * 12 < (long) thetas.length * 8;
+
+		out.writeInt(thetas.length);
+		out.writeBoolean(sparse);
+
+		if (sparse) {
+			out.writeInt(nonZeros);
+			for (int i = 0; i < thetas.length; i++) {
+				if (thetas[i] != 0.0) {
+					out.writeInt(i);
+					out.writeDouble(thetas[i]);
+				}
+			}
+		}
+		else {
+			for (int i = 0; i < thetas.length; i++)
+				out.writeDouble(thetas[i]);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		final int length = in.readInt();
+
+		if (length < 0)
+			return;
+
+		thetas = new double[length];
+
+		if (in.readBoolean()) {
+			final int nonZeros = in.readInt();
+			for (int i = 0; i < nonZeros; i++) {
+				final int index = in.readInt();
+				thetas[index] = in.readDouble();
+			}
+		}
+		else {
+			for (int i = 0; i < length; i++)
+				thetas[i] = in.readDouble();
+		}
 	}
 
 	public boolean fit(List<IndexedSample> samples, List<Double> weights, int numberOfIterations) {
-		StochasticGradientDescent sgd = new StochasticGradientDescent(this, numberOfIterations,
+		double[] sampleWeights = new double[weights.size()];
+
+		for (int i = 0; i < sampleWeights.length; i++)
+			sampleWeights[i] = weights.get(i);
+
+		return fit(SparseDataset.fromIndexedSamples(samples), sampleWeights, numberOfIterations);
+	}
+
+	public boolean fit(SparseRows samples, double[] weights, int numberOfIterations) {
+		StochasticGradientDescent optimizer = new StochasticGradientDescent(this, numberOfIterations,
 				StochasticGradientDescent.Algorithm.BFGS);
+
+		if (metrics != null)
+			optimizer.setMetrics(metrics);
+
+		return fit(samples, weights, optimizer);
+	}
+
+	/**
+	 * Fit the samples with an optimizer created for this target function, e.g. a
+	 * {@link zyh.ml.optimization.MiniBatchGradientDescent}
+	 */
+	public boolean fit(SparseRows samples, double[] weights, Optimizer optimizer) {
 		trainingSamples = samples;
 		sampleWeights = weights;
+		updateArguments(thetas);
 
 		try {
-			sgd.run();
+			optimizer.run();
 		} catch (Exception e) {
 			e.printStackTrace();
-			logger.log("Stopping threads...");
 			updateArguments(null);
 			return false;
 		}
@@ -257,44 +1072,142 @@ public class LogisticRegression implements TargetFunction, Serializable {
 		return true;
 	}
 
-	private int getPredictedLabel(double[] probabilities) {
-		double maxProb = 0.0;
-		int predictedLabel = 0;
+	/**
+	 * Evaluate on the samples without fitting them, e.g. as a part of a distributed dataset
+	 */
+	void setTrainingData(SparseRows samples, double[] weights) {
+		trainingSamples = samples;
+		sampleWeights = weights;
+		updateArguments(thetas);
+	}
+
+	/**
+	 * Drop the training samples and the evaluation buffers
+	 */
+	public void discardTrainingData() {
+		trainingSamples = null;
+		sampleWeights = null;
+		updateArguments(thetas);
+	}
+
+	/**
+	 * @return the parameters, <i>numberOfClasses - 1</i> rows of <i>numberOfFeatures</i> each, not a copy
+	 */
+	double[] getThetas() {
+		return thetas;
+	}
+
+	public int numberOfClasses() {
+		return numberOfClasses;
+	}
+
+	/**
+	 * Predict a sample given as parallel arrays of feature indices and values, without allocation
+	 * @param length number of features of the sample
+	 */
+	public int predict(int[] featureIndices, double[] values, int length) {
+		/* The probabilities follow the order of the scores, and the last class has a score of 0 */
+		double maxScore = Double.NEGATIVE_INFINITY;
+		int predictedLabel = numberOfClasses - 1;
 
-		for (int i = 0; i < probabilities.length; i++) {
-			if (probabilities[i] > maxProb) {
-				maxProb = probabilities[i];
+		for (int i = 0; i < numberOfClasses - 1; i++) {
+			final double score = multiply(i, featureIndices, values, 0, length);
+
+			if (score > maxScore) {
+				maxScore = score;
 				predictedLabel = i;
 			}
 		}
 
-		return predictedLabel;
+		return (maxScore >= 0.0) ? predictedLabel : numberOfClasses - 1;
+	}
+
+	/**
+	 * Probabilities of a sample given as parallel arrays of feature indices and values, without allocation
+	 * @param length number of features of the sample
+	 * @param probabilities receives the probabilities of all classes from the offset on
+	 */
+	public void probabilityPredict(int[] featureIndices, double[] values, int length,
+			double[] probabilities, int offset) {
+		probabilityPredict(featureIndices, values, 0, length, probabilities, offset);
+	}
+
+	/**
+	 * Probabilities of the sample made of features begin to end - 1 of the arrays
+	 */
+	private void probabilityPredict(int[] featureIndices, double[] values, int begin, int end,
+			double[] probabilities, int offset) {
+		for (int i = 0; i < numberOfClasses - 1; i++)
+			probabilities[offset + i] = multiply(i, featureIndices, values, begin, end);
+		Softmax.normalize(probabilities, offset, numberOfClasses);
 	}
 
 	public int predict(IndexedSample sample) {
-		return getPredictedLabel(probabilityPredict(sample));
+		double maxScore = Double.NEGATIVE_INFINITY;
+		int predictedLabel = numberOfClasses - 1;
+
+		for (int i = 0; i < numberOfClasses - 1; i++) {
+			final double score = multiply(i, sample);
+
+			if (score > maxScore) {
+				maxScore = score;
+				predictedLabel = i;
+			}
+		}
+
+		return (maxScore >= 0.0) ? predictedLabel : numberOfClasses - 1;
 	}
 
 	public double[] probabilityPredict(IndexedSample sample) {
 		double[] probabilities = new double[numberOfClasses];
 
-		for (int i = numberOfClasses - 2; i >= 0; i--) {
-			probabilities[i] = Math.exp(multiply(i, sample));
-		}
-		probabilities[numberOfClasses - 1] = 1.0;
+		for (int i = 0; i < numberOfClasses - 1; i++)
+			probabilities[i] = multiply(i, sample);
+		Softmax.normalize(probabilities, 0, numberOfClasses);
 
-		double invertedSum = 0.0;
+		return probabilities;
+	}
 
-		for (int i = 0; i < numberOfClasses; i++)
-			invertedSum += probabilities[i];
-		invertedSum = 1.0 / invertedSum;
+	public double[] probabilityPredict(SparseDataset samples, int row) {
+		double[] probabilities = new double[numberOfClasses];
 
-		for (int i = 0; i < numberOfClasses; i++)
-			probabilities[i] *= invertedSum;
+		for (int i = 0; i < numberOfClasses - 1; i++)
+			probabilities[i] = multiply(i, samples, row);
+		Softmax.normalize(probabilities, 0, numberOfClasses);
 
 		return probabilities;
 	}
 
+	public double multiply(int thetaIndex, SparseDataset samples, int row) {
+		final int[] featureIndices = samples.getFeatureIndices();
+		final double[] values = samples.getValues();
+		final int endIndex = samples.rowEnd(row);
+		double sum = 0.0;
+		int startIndex = thetaIndex * numberOfFeatures;
+
+		for (int k = samples.rowBegin(row); k < endIndex; k++)
+			sum += thetas[startIndex + featureIndices[k]] * values[k];
+
+		return sum;
+	}
+
+	private double multiply(int thetaIndex, int[] featureIndices, double[] values, int begin, int end) {
+		return multiply(thetas, thetaIndex, featureIndices, values, begin, end);
+	}
+
+	/**
+	 * Product of the sample with the part of the vector for the class
+	 */
+	private double multiply(double[] vector, int thetaIndex, int[] featureIndices, double[] values, int begin, int end) {
+		final int startIndex = thetaIndex * numberOfFeatures;
+		double sum = 0.0;
+
+		for (int k = begin; k < end; k++)
+			sum += vector[startIndex + featureIndices[k]] * values[k];
+
+		return sum;
+	}
+
 	public double multiply(int thetaIndex, IndexedSample sample) {
 		double sum = 0.0;
 		int startIndex = thetaIndex * numberOfFeatures;
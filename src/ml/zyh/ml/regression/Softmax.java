@@ -0,0 +1,43 @@
+package zyh.ml.regression;
+
+/**
+ * Softmax of the scores of multinomial logistic regression, where the last class has a score of 0.
+ * The largest score is subtracted before exponentiation (log-sum-exp), so that large scores neither
+ * overflow to infinity nor turn probabilities into NaN.
+ */
+final class Softmax {
+
+	private Softmax() {
+	}
+
+	/**
+	 * Replace the scores of the first <i>numberOfClasses - 1</i> classes by the probabilities of all classes
+	 * @param values holds the scores from the offset on, and receives <i>numberOfClasses</i> probabilities
+	 * @return log of the sum of the exponentials of the scores, so that the log probability of class
+	 *         <i>j</i> is its score minus this value
+	 */
+	static double normalize(double[] values, int offset, int numberOfClasses) {
+		final int last = offset + numberOfClasses - 1;
+		double maximum = 0.0;
+
+		for (int i = offset; i < last; i++) {
+			if (values[i] > maximum)
+				maximum = values[i];
+		}
+
+		double sum = Math.exp(-maximum);
+
+		values[last] = sum;
+		for (int i = offset; i < last; i++) {
+			values[i] = Math.exp(values[i] - maximum);
+			sum += values[i];
+		}
+
+		final double invertedSum = 1.0 / sum;
+
+		for (int i = offset; i <= last; i++)
+			values[i] *= invertedSum;
+
+		return maximum + Math.log(sum);
+	}
+}
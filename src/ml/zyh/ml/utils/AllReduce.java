@@ -0,0 +1,304 @@
+package zyh.ml.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sums and broadcasts arrays of doubles among processes connected in a ring over plain TCP.
+ * Process 0, the coordinator, listens on a known port. Every other process joins by connecting
+ * to it and gets a rank, then each process connects to the next rank and accepts the previous one.
+ * <p>
+ * {@link #sum(double[])} is a ring allreduce: the array is split into one segment per process,
+ * segments are summed while passed around once, and the sums are passed around once more. Each
+ * process sends and receives about twice the array however many processes there are, and all
+ * processes end up with the same bits.
+ */
+public class AllReduce implements Closeable {
+
+	private static final int MAGIC = 0x52494E47;
+
+	/* Doubles per buffer, broadcasts are forwarded in pieces of this size */
+	private static final int BUFFER_DOUBLES = 1 << 16;
+
+	private final int rank;
+
+	private final int size;
+
+	private final SocketChannel next;
+
+	private final SocketChannel previous;
+
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(8 * BUFFER_DOUBLES).order(ByteOrder.LITTLE_ENDIAN);
+
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(8 * BUFFER_DOUBLES).order(ByteOrder.LITTLE_ENDIAN);
+
+	private final double[] received = new double[BUFFER_DOUBLES];
+
+	/* Sends to the next process while receiving from the previous one */
+	private final ExecutorService sender;
+
+	private AllReduce(int rank, int size, SocketChannel next, SocketChannel previous) throws IOException {
+		this.rank = rank;
+		this.size = size;
+		this.next = next;
+		this.previous = previous;
+		if (next != null) {
+			next.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			previous.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		this.sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AllReduce-" + rank);
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Listen for the other processes, see {@link #coordinate(ServerSocketChannel, int)}
+	 * @param port the port to listen on, or 0 for any free port
+	 */
+	public static ServerSocketChannel listen(int port) throws IOException {
+		return ServerSocketChannel.open().bind(new InetSocketAddress(port));
+	}
+
+	/**
+	 * Wait until the other processes have joined and connect the ring, as process 0
+	 * @param server a channel from {@link #listen(int)}, closed afterwards
+	 * @param size number of processes including this one
+	 */
+	public static AllReduce coordinate(ServerSocketChannel server, int size) throws IOException {
+		if (size < 1)
+			throw new IllegalArgumentException("Number of processes must be positive.");
+		if (size == 1) {
+			server.close();
+			return new AllReduce(0, 1, null, null);
+		}
+
+		try (ServerSocketChannel ringServer = listen(0)) {
+			SocketChannel[] workers = new SocketChannel[size];
+			String[] hosts = new String[size];
+			int[] ports = new int[size];
+
+			try {
+				for (int rank = 1; rank < size; rank++) {
+					workers[rank] = server.accept();
+
+					final ByteBuffer hello = read(workers[rank], 8);
+
+					if (hello.getInt() != MAGIC)
+						throw new IOException("Unknown process connected to the coordinator.");
+					hosts[rank] = ((InetSocketAddress) workers[rank].getRemoteAddress()).getAddress().getHostAddress();
+					ports[rank] = hello.getInt();
+				}
+
+				/* The last process reaches the coordinator by the address it connected to */
+				hosts[0] = ((InetSocketAddress) workers[size - 1].getLocalAddress()).getAddress().getHostAddress();
+				ports[0] = ((InetSocketAddress) ringServer.getLocalAddress()).getPort();
+
+				for (int rank = 1; rank < size; rank++) {
+					final int nextRank = (rank + 1) % size;
+					final byte[] host = hosts[nextRank].getBytes(StandardCharsets.UTF_8);
+					ByteBuffer assignment = ByteBuffer.allocate(16 + host.length).order(ByteOrder.LITTLE_ENDIAN);
+
+					assignment.putInt(rank).putInt(size).putInt(ports[nextRank]).putInt(host.length).put(host);
+					assignment.flip();
+					write(workers[rank], assignment);
+				}
+
+				final SocketChannel next = SocketChannel.open(new InetSocketAddress(hosts[1], ports[1]));
+
+				return new AllReduce(0, size, next, ringServer.accept());
+			} finally {
+				server.close();
+				for (final SocketChannel worker : workers) {
+					if (worker != null)
+						worker.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Join the processes of the coordinator and connect the ring
+	 */
+	public static AllReduce join(String host, int port) throws IOException {
+		try (ServerSocketChannel ringServer = listen(0);
+				SocketChannel coordinator = SocketChannel.open(new InetSocketAddress(host, port))) {
+			ByteBuffer hello = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+			hello.putInt(MAGIC).putInt(((InetSocketAddress) ringServer.getLocalAddress()).getPort());
+			hello.flip();
+			write(coordinator, hello);
+
+			final ByteBuffer assignment = read(coordinator, 16);
+			final int rank = assignment.getInt();
+			final int size = assignment.getInt();
+			final int nextPort = assignment.getInt();
+			final ByteBuffer nextHost = read(coordinator, assignment.getInt());
+			final SocketChannel next = SocketChannel.open(new InetSocketAddress(
+					StandardCharsets.UTF_8.decode(nextHost).toString(), nextPort));
+
+			return new AllReduce(rank, size, next, ringServer.accept());
+		}
+	}
+
+	public int rank() {
+		return rank;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Replace the values of every process with their sums over all processes
+	 */
+	public void sum(double[] values) throws IOException {
+		if (size == 1)
+			return;
+
+		/* Segment (rank + 1) % size is complete on each process after size - 1 steps */
+		for (int step = 0; step < size - 1; step++)
+			exchange(values, Math.floorMod(rank - step, size), Math.floorMod(rank - step - 1, size), true);
+		for (int step = 0; step < size - 1; step++)
+			exchange(values, Math.floorMod(rank + 1 - step, size), Math.floorMod(rank - step, size), false);
+	}
+
+	/**
+	 * Replace the values of every process with those of process 0
+	 */
+	public void broadcast(double[] values) throws IOException {
+		if (size == 1)
+			return;
+
+		for (int offset = 0; offset < values.length; offset += BUFFER_DOUBLES) {
+			final int length = Math.min(BUFFER_DOUBLES, values.length - offset);
+
+			if (rank != 0)
+				receive(values, offset, length, false);
+			if (rank != size - 1)
+				send(values, offset, length);
+		}
+	}
+
+	private int segmentBegin(int segment, int length) {
+		return (int) ((long) segment * length / size);
+	}
+
+	/**
+	 * Send a segment to the next process and add or copy a segment from the previous one at the same time
+	 */
+	private void exchange(double[] values, int sendSegment, int receiveSegment, boolean adding) throws IOException {
+		final int sendBegin = segmentBegin(sendSegment, values.length);
+		final int sendLength = segmentBegin(sendSegment + 1, values.length) - sendBegin;
+		final int receiveBegin = segmentBegin(receiveSegment, values.length);
+		final int receiveLength = segmentBegin(receiveSegment + 1, values.length) - receiveBegin;
+
+		final Future<?> sending = sender.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				send(values, sendBegin, sendLength);
+				return null;
+			}
+		});
+
+		try {
+			receive(values, receiveBegin, receiveLength, adding);
+			sending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			sending.cancel(false);
+		}
+	}
+
+	private void send(double[] values, int offset, int length) throws IOException {
+		sendBuffer.clear();
+
+		final DoubleBuffer doubles = sendBuffer.asDoubleBuffer();
+
+		for (int position = offset; position < offset + length; position += BUFFER_DOUBLES) {
+			final int count = Math.min(BUFFER_DOUBLES, offset + length - position);
+
+			doubles.clear();
+			doubles.put(values, position, count);
+			sendBuffer.clear().limit(8 * count);
+			write(next, sendBuffer);
+		}
+	}
+
+	private void receive(double[] values, int offset, int length, boolean adding) throws IOException {
+		for (int position = offset; position < offset + length; position += BUFFER_DOUBLES) {
+			final int count = Math.min(BUFFER_DOUBLES, offset + length - position);
+
+			receiveBuffer.clear().limit(8 * count);
+			readFully(previous, receiveBuffer);
+			receiveBuffer.flip();
+			receiveBuffer.asDoubleBuffer().get(received, 0, count);
+
+			if (adding) {
+				for (int i = 0; i < count; i++)
+					values[position + i] += received[i];
+			}
+			else {
+				System.arraycopy(received, 0, values, position, count);
+			}
+		}
+	}
+
+	private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Connection closed by another process.");
+		}
+	}
+
+	private static ByteBuffer read(SocketChannel channel, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+		readFully(channel, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		sender.shutdownNow();
+		try {
+			if (next != null)
+				next.close();
+		} finally {
+			if (previous != null)
+				previous.close();
+		}
+	}
+}
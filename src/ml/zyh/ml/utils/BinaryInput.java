@@ -0,0 +1,164 @@
+package zyh.ml.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered little endian reader on a {@link FileChannel}, the counterpart of {@link BinaryOutput}.
+ * Arrays are copied from the buffer in bulk rather than one element at a time.
+ */
+public class BinaryInput implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	/* Position of the end of the buffered bytes in the file */
+	private long filledPosition = 0;
+
+	public BinaryInput(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		buffer.limit(0);
+	}
+
+	/**
+	 * @return number of bytes read so far
+	 */
+	public long position() {
+		return filledPosition - buffer.remaining();
+	}
+
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Make sure that at least the given number of bytes, no more than the buffer size, are buffered
+	 */
+	private void ensureRemaining(int length) throws IOException {
+		if (buffer.remaining() >= length)
+			return;
+
+		buffer.compact();
+		while (buffer.position() < length) {
+			final int read = channel.read(buffer, filledPosition);
+
+			if (read < 0)
+				throw new EOFException();
+			filledPosition += read;
+		}
+		buffer.flip();
+	}
+
+	public byte readByte() throws IOException {
+		ensureRemaining(1);
+		return buffer.get();
+	}
+
+	public int readInt() throws IOException {
+		ensureRemaining(4);
+		return buffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+		ensureRemaining(8);
+		return buffer.getLong();
+	}
+
+	public float readFloat() throws IOException {
+		ensureRemaining(4);
+		return buffer.getFloat();
+	}
+
+	public double readDouble() throws IOException {
+		ensureRemaining(8);
+		return buffer.getDouble();
+	}
+
+	public void readBytes(byte[] bytes) throws IOException {
+		int offset = 0;
+
+		while (offset < bytes.length) {
+			ensureRemaining(1);
+
+			final int length = Math.min(buffer.remaining(), bytes.length - offset);
+
+			buffer.get(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	public void readInts(int[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureRemaining(4);
+
+			final int count = Math.min(buffer.remaining() / 4, length);
+
+			buffer.asIntBuffer().get(values, offset, count);
+			buffer.position(buffer.position() + count * 4);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	public void readLongs(long[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureRemaining(8);
+
+			final int count = Math.min(buffer.remaining() / 8, length);
+
+			buffer.asLongBuffer().get(values, offset, count);
+			buffer.position(buffer.position() + count * 8);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	public void readDoubles(double[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureRemaining(8);
+
+			final int count = Math.min(buffer.remaining() / 8, length);
+
+			buffer.asDoubleBuffer().get(values, offset, count);
+			buffer.position(buffer.position() + count * 8);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Read a string written by {@link BinaryOutput#writeString(String)}
+	 */
+	public String readString() throws IOException {
+		final byte[] bytes = new byte[readInt()];
+
+		readBytes(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Skip the padding written by {@link BinaryOutput#align(int)}
+	 */
+	public void align(int alignment) throws IOException {
+		while (position() % alignment != 0)
+			readByte();
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
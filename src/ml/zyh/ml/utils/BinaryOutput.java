@@ -0,0 +1,186 @@
+package zyh.ml.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered little endian writer on a {@link FileChannel}, for binary formats that are read back
+ * through {@link FileChannel#map}. Sections can be aligned so that they can be viewed as
+ * <code>DoubleBuffer</code>, <code>LongBuffer</code> etc. after mapping.
+ */
+public class BinaryOutput implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	/* Position of the first byte in the buffer */
+	private long flushedPosition = 0;
+
+	/**
+	 * Create or truncate the file
+	 */
+	public BinaryOutput(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	public long position() {
+		return flushedPosition + buffer.position();
+	}
+
+	private void ensureRemaining(int length) throws IOException {
+		if (buffer.remaining() < length)
+			flush();
+	}
+
+	public void writeByte(byte value) throws IOException {
+		ensureRemaining(1);
+		buffer.put(value);
+	}
+
+	public void writeInt(int value) throws IOException {
+		ensureRemaining(4);
+		buffer.putInt(value);
+	}
+
+	public void writeLong(long value) throws IOException {
+		ensureRemaining(8);
+		buffer.putLong(value);
+	}
+
+	public void writeFloat(float value) throws IOException {
+		ensureRemaining(4);
+		buffer.putFloat(value);
+	}
+
+	public void writeDouble(double value) throws IOException {
+		ensureRemaining(8);
+		buffer.putDouble(value);
+	}
+
+	public void writeBytes(byte[] bytes) throws IOException {
+		int offset = 0;
+
+		while (offset < bytes.length) {
+			ensureRemaining(1);
+
+			final int length = Math.min(buffer.remaining(), bytes.length - offset);
+
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	public void writeInts(int[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureRemaining(4);
+
+			final int count = Math.min(buffer.remaining() / 4, length);
+
+			buffer.asIntBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + count * 4);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	public void writeDoubles(double[] values, int offset, int length) throws IOException {
+		while (length > 0) {
+			ensureRemaining(8);
+
+			final int count = Math.min(buffer.remaining() / 8, length);
+
+			buffer.asDoubleBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + count * 8);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Write the UTF-8 bytes of the string, preceded by their length
+	 */
+	public void writeString(String value) throws IOException {
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+		writeInt(bytes.length);
+		writeBytes(bytes);
+	}
+
+	/**
+	 * Pad with zeros up to a multiple of the alignment
+	 */
+	public void align(int alignment) throws IOException {
+		while (position() % alignment != 0)
+			writeByte((byte) 0);
+	}
+
+	/**
+	 * Overwrite a long that has already been written, e.g. the offset of a later section in a header
+	 */
+	public void writeLongAt(long position, long value) throws IOException {
+		flush();
+
+		final ByteBuffer bytes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+		bytes.putLong(0, value);
+		while (bytes.hasRemaining())
+			channel.write(bytes, position + bytes.position());
+	}
+
+	/**
+	 * Append the whole content of a file
+	 */
+	public void writeFile(File source) throws IOException {
+		flush();
+		try (RandomAccessFile sourceFile = new RandomAccessFile(source, "r")) {
+			final FileChannel sourceChannel = sourceFile.getChannel();
+			final long size = sourceChannel.size();
+			long transferred = 0;
+
+			while (transferred < size)
+				transferred += channel.transferFrom(sourceChannel.position(transferred), flushedPosition + transferred,
+						size - transferred);
+			flushedPosition += size;
+		}
+	}
+
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			flushedPosition += channel.write(buffer, flushedPosition);
+		buffer.clear();
+	}
+
+	/**
+	 * Flush and force the content of the file to the storage device
+	 */
+	public void sync() throws IOException {
+		flush();
+		channel.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package zyh.ml.utils;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result, timings and counts of one iteration of an optimizer, or one epoch of mini-batches
+ */
+public class IterationMetrics {
+
+	private final int iteration;
+
+	private final double targetFunction;
+
+	private final double gradientNorm;
+
+	private final int evaluations;
+
+	private final long samples;
+
+	private final boolean accepted;
+
+	private final long nanos;
+
+	private final long[] phaseNanos;
+
+	private final long[] phaseCounts;
+
+	private final Map<String, Double> additionalInfo;
+
+	IterationMetrics(int iteration, double targetFunction, double gradientNorm, int evaluations, long samples,
+			boolean accepted, long nanos, long[] phaseNanos, long[] phaseCounts, Map<String, Double> additionalInfo) {
+		this.iteration = iteration;
+		this.targetFunction = targetFunction;
+		this.gradientNorm = gradientNorm;
+		this.evaluations = evaluations;
+		this.samples = samples;
+		this.accepted = accepted;
+		this.nanos = nanos;
+		this.phaseNanos = phaseNanos;
+		this.phaseCounts = phaseCounts;
+		this.additionalInfo = (additionalInfo != null) ? Collections.unmodifiableMap(additionalInfo)
+				: Collections.<String, Double>emptyMap();
+	}
+
+	/**
+	 * @return number of the iteration, from 1 on
+	 */
+	public int iteration() {
+		return iteration;
+	}
+
+	public double targetFunction() {
+		return targetFunction;
+	}
+
+	/**
+	 * @return norm of the gradient, of the pseudo-gradient for OWL-QN or of the last mini-batch
+	 */
+	public double gradientNorm() {
+		return gradientNorm;
+	}
+
+	public int evaluations() {
+		return evaluations;
+	}
+
+	/**
+	 * @return samples read by the evaluations
+	 */
+	public long samples() {
+		return samples;
+	}
+
+	/**
+	 * @return <b>false</b> if the trust region Newton method rejected the step
+	 */
+	public boolean accepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return wall time of the iteration
+	 */
+	public long nanos() {
+		return nanos;
+	}
+
+	public double samplesPerSecond() {
+		return (nanos > 0) ? samples * 1e9 / nanos : 0.0;
+	}
+
+	/**
+	 * @return time of the phase in the iteration, phases may overlap
+	 */
+	public long nanos(Metrics.Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return how many times the phase ran in the iteration
+	 */
+	public long count(Metrics.Phase phase) {
+		return phaseCounts[phase.ordinal()];
+	}
+
+	/**
+	 * @return values of the optimizer and the target function, such as the accuracy, in the order of their titles
+	 */
+	public Map<String, Double> additionalInfo() {
+		return additionalInfo;
+	}
+}
@@ -20,8 +20,12 @@ public class Logger extends Timer implements Serializable {
 		this.verboseLevel = verboseLevel;
 	}
 
+	public boolean isLogging(int requiredLevel) {
+		return verboseLevel >= requiredLevel;
+	}
+
 	public void log(int requiredLevel, String format, Object... args) {
-		if (verboseLevel >= requiredLevel)
+		if (isLogging(requiredLevel))
 			System.out.println(String.format(format, args));
 	}
 
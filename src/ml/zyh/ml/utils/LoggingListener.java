@@ -0,0 +1,60 @@
+package zyh.ml.utils;
+
+import java.util.Map.Entry;
+
+/**
+ * Prints the iterations of training as a table through a {@link Logger}, which is what the
+ * optimizers print by default
+ */
+public class LoggingListener implements Metrics.Listener {
+
+	private final Logger logger;
+
+	private boolean printingTitles;
+
+	public LoggingListener() {
+		this(new Logger(1));
+	}
+
+	public LoggingListener(Logger logger) {
+		this.logger = logger;
+	}
+
+	@Override
+	public void trainingStarted(String optimizer, int numberOfIterations) {
+		logger.log("%s... MaxIter = %d", optimizer, numberOfIterations);
+		printingTitles = true;
+	}
+
+	@Override
+	public void iterationFinished(IterationMetrics iteration) {
+		if (!logger.isLogging(1))
+			return;
+
+		StringBuilder builder = new StringBuilder();
+
+		if (printingTitles) {
+			builder.append("Iteration\tTarget Function\tGradient Norm\tEvaluations\tTime (ms)\tSamples/s");
+			for (final String title : iteration.additionalInfo().keySet())
+				builder.append('\t').append(title);
+			logger.log(builder.toString());
+			builder.setLength(0);
+			printingTitles = false;
+		}
+
+		builder.append(String.format("%d\t%f\t%f\t%d\t%.1f\t%.0f", iteration.iteration(), iteration.targetFunction(),
+				iteration.gradientNorm(), iteration.evaluations(), iteration.nanos() / 1e6,
+				iteration.samplesPerSecond()));
+		for (final Entry<String, Double> entry : iteration.additionalInfo().entrySet())
+			builder.append(String.format("\t%f", entry.getValue()));
+		if (!iteration.accepted())
+			builder.append("\tStep rejected");
+		logger.log(builder.toString());
+	}
+
+	@Override
+	public void trainingFinished(String reason) {
+		if (reason != null)
+			logger.log("%s.", reason);
+	}
+}
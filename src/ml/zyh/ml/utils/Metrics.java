@@ -0,0 +1,277 @@
+package zyh.ml.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counts of training, in nanoseconds, delivered to listeners after every iteration
+ * and exposed over JMX once {@link #register(String) registered}. Optimizers, target functions,
+ * engines and indexers record the phases they run into the metrics they are given, and record
+ * nothing without one.
+ * <p>
+ * Phases are recorded from any thread, iterations are finished by the optimizer. Phases recorded
+ * before an optimizer starts, such as indexing, only count in the totals.
+ */
+public class Metrics implements MetricsMXBean {
+
+	public enum Phase {
+		/* Counting features and indexing samples */
+		INDEXING,
+		/* Evaluations of the target function and gradient, including trial steps of line searches */
+		EVALUATION,
+		/* Hessian-vector products of the trust region Newton method */
+		HESSIAN_VECTOR_PRODUCT,
+		/* Line searches, including their evaluations */
+		LINE_SEARCH,
+		/* Two-loop recursion of l-BFGS */
+		TWO_LOOP_RECURSION,
+		/* Adding up the partial gradients of threads or processes */
+		REDUCTION,
+		/* Time threads of an engine wait for the last task of a parallel run */
+		IDLE
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	public interface Listener {
+		/**
+		 * @param optimizer name and settings of the optimizer
+		 */
+		public void trainingStarted(String optimizer, int numberOfIterations);
+
+		/**
+		 * Called on the thread of the optimizer, which waits for the listeners
+		 */
+		public void iterationFinished(IterationMetrics iteration);
+
+		/**
+		 * @param reason why training stopped before the last iteration, or <b>null</b>
+		 */
+		public void trainingFinished(String reason);
+	}
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	/* Phases of the current iteration, moved to the totals when it finishes */
+
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES.length);
+
+	private final AtomicLongArray phaseCounts = new AtomicLongArray(PHASES.length);
+
+	private final AtomicLongArray totalPhaseNanos = new AtomicLongArray(PHASES.length);
+
+	private final AtomicLongArray totalPhaseCounts = new AtomicLongArray(PHASES.length);
+
+	private long iterationStart = System.nanoTime();
+
+	private volatile long iterations = 0;
+
+	private volatile long evaluations = 0;
+
+	private volatile long samples = 0;
+
+	private volatile long trainingNanos = 0;
+
+	private volatile IterationMetrics lastIteration = null;
+
+	private ObjectName objectName = null;
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Add the duration of a phase run once
+	 */
+	public void record(Phase phase, long nanos) {
+		phaseNanos.addAndGet(phase.ordinal(), nanos);
+		phaseCounts.incrementAndGet(phase.ordinal());
+	}
+
+	/**
+	 * Move the phases recorded so far into the totals and start timing the first iteration
+	 */
+	public void trainingStarted(String optimizer, int numberOfIterations) {
+		for (int p = 0; p < PHASES.length; p++) {
+			totalPhaseNanos.addAndGet(p, phaseNanos.getAndSet(p, 0));
+			totalPhaseCounts.addAndGet(p, phaseCounts.getAndSet(p, 0));
+		}
+		iterationStart = System.nanoTime();
+
+		for (final Listener listener : listeners)
+			listener.trainingStarted(optimizer, numberOfIterations);
+	}
+
+	/**
+	 * Finish the current iteration with the phases recorded since the last one and notify the listeners
+	 * @param result target function after the iteration
+	 * @param gradientNorm norm of the gradient after the iteration, or <b>NaN</b> if unknown
+	 * @param evaluations evaluations of the target function in the iteration
+	 * @param samples samples read by the evaluations
+	 * @param accepted whether the iteration moved the arguments
+	 * @param additionalInfo values of the optimizer and the target function, in the order of their
+	 *        titles, kept by the metrics
+	 */
+	public void iterationFinished(int iteration, double result, double gradientNorm, int evaluations, long samples,
+			boolean accepted, Map<String, Double> additionalInfo) {
+		final long now = System.nanoTime();
+		final long nanos = now - iterationStart;
+		final long[] nanosByPhase = new long[PHASES.length];
+		final long[] countsByPhase = new long[PHASES.length];
+
+		iterationStart = now;
+		for (int p = 0; p < PHASES.length; p++) {
+			nanosByPhase[p] = phaseNanos.getAndSet(p, 0);
+			countsByPhase[p] = phaseCounts.getAndSet(p, 0);
+			totalPhaseNanos.addAndGet(p, nanosByPhase[p]);
+			totalPhaseCounts.addAndGet(p, countsByPhase[p]);
+		}
+
+		final IterationMetrics metrics = new IterationMetrics(iteration, result, gradientNorm, evaluations, samples,
+				accepted, nanos, nanosByPhase, countsByPhase, additionalInfo);
+
+		this.iterations++;
+		this.evaluations += evaluations;
+		this.samples += samples;
+		this.trainingNanos += nanos;
+		this.lastIteration = metrics;
+
+		for (final Listener listener : listeners)
+			listener.iterationFinished(metrics);
+	}
+
+	public void trainingFinished(String reason) {
+		for (final Listener listener : listeners)
+			listener.trainingFinished(reason);
+	}
+
+	/**
+	 * @return the last finished iteration, or <b>null</b>
+	 */
+	public IterationMetrics lastIteration() {
+		return lastIteration;
+	}
+
+	/**
+	 * @return nanoseconds of the phase in all finished iterations and before training
+	 */
+	public long totalNanos(Phase phase) {
+		return totalPhaseNanos.get(phase.ordinal());
+	}
+
+	public long totalCount(Phase phase) {
+		return totalPhaseCounts.get(phase.ordinal());
+	}
+
+	/**
+	 * Register as the MXBean <i>zyh.ml:type=Metrics,name=name</i> of the platform MBean server
+	 */
+	public synchronized void register(String name) throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		unregister();
+		objectName = ObjectName.getInstance(String.format("zyh.ml:type=Metrics,name=%s", ObjectName.quote(name)));
+		server.registerMBean(this, objectName);
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public long getIterations() {
+		return iterations;
+	}
+
+	@Override
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	@Override
+	public long getSamples() {
+		return samples;
+	}
+
+	@Override
+	public long getTrainingNanos() {
+		return trainingNanos;
+	}
+
+	@Override
+	public double getSamplesPerSecond() {
+		final long nanos = trainingNanos;
+
+		return (nanos > 0) ? samples * 1e9 / nanos : 0.0;
+	}
+
+	@Override
+	public double getTargetFunction() {
+		final IterationMetrics iteration = lastIteration;
+
+		return (iteration != null) ? iteration.targetFunction() : Double.NaN;
+	}
+
+	@Override
+	public double getGradientNorm() {
+		final IterationMetrics iteration = lastIteration;
+
+		return (iteration != null) ? iteration.gradientNorm() : Double.NaN;
+	}
+
+	@Override
+	public long getLastIterationNanos() {
+		final IterationMetrics iteration = lastIteration;
+
+		return (iteration != null) ? iteration.nanos() : 0;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseNanos() {
+		Map<String, Long> nanos = new LinkedHashMap<>();
+
+		for (final Phase phase : PHASES)
+			nanos.put(phase.name(), totalPhaseNanos.get(phase.ordinal()) + phaseNanos.get(phase.ordinal()));
+
+		return nanos;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+
+		for (final Phase phase : PHASES)
+			counts.put(phase.name(), totalPhaseCounts.get(phase.ordinal()) + phaseCounts.get(phase.ordinal()));
+
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getLastIterationPhaseNanos() {
+		final IterationMetrics iteration = lastIteration;
+		Map<String, Long> nanos = new LinkedHashMap<>();
+
+		if (iteration == null)
+			return Collections.emptyMap();
+		for (final Phase phase : PHASES)
+			nanos.put(phase.name(), iteration.nanos(phase));
+
+		return nanos;
+	}
+}
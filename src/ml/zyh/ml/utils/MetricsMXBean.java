@@ -0,0 +1,43 @@
+package zyh.ml.utils;
+
+import java.util.Map;
+
+/**
+ * Training metrics over JMX, see {@link Metrics#register(String)}. Times are in nanoseconds.
+ */
+public interface MetricsMXBean {
+
+	public long getIterations();
+
+	public long getEvaluations();
+
+	public long getSamples();
+
+	/**
+	 * @return time of all finished iterations
+	 */
+	public long getTrainingNanos();
+
+	public double getSamplesPerSecond();
+
+	/**
+	 * @return target function after the last iteration
+	 */
+	public double getTargetFunction();
+
+	public double getGradientNorm();
+
+	public long getLastIterationNanos();
+
+	/**
+	 * @return time of every phase so far, by the names of {@link Metrics.Phase}
+	 */
+	public Map<String, Long> getPhaseNanos();
+
+	/**
+	 * @return how many times every phase ran so far
+	 */
+	public Map<String, Long> getPhaseCounts();
+
+	public Map<String, Long> getLastIterationPhaseNanos();
+}
@@ -0,0 +1,150 @@
+package zyh.ml.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs indexed tasks on an executor and waits for all of them to finish. One engine
+ * can be shared by several models, the executor is only shut down by the engine if
+ * the engine created it.
+ */
+public class ParallelEngine {
+
+	public interface Task {
+		/**
+		 * @param taskIndex index of the task, from 0 to numberOfTasks - 1
+		 */
+		public void run(int taskIndex) throws Exception;
+	}
+
+	private ExecutorService executor;
+
+	private int parallelism;
+
+	private boolean ownsExecutor;
+
+	private Metrics metrics = null;
+
+	/**
+	 * Create an engine with one thread per available processor
+	 */
+	public ParallelEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelEngine(int numberOfThreads) {
+		if (numberOfThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be positive.");
+		this.executor = new ForkJoinPool(numberOfThreads);
+		this.parallelism = numberOfThreads;
+		this.ownsExecutor = true;
+	}
+
+	public ParallelEngine(ForkJoinPool pool) {
+		this(pool, pool.getParallelism());
+	}
+
+	/**
+	 * @param executor the executor to run tasks on, which will not be shut down by this engine
+	 * @param parallelism number of tasks the executor can run at the same time
+	 */
+	public ParallelEngine(ExecutorService executor, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive.");
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.ownsExecutor = false;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Record the time threads wait for the last task of every run as {@link Metrics.Phase#IDLE}
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Run the task for every index from 0 to numberOfTasks - 1 and wait for all of them
+	 * @throws RuntimeException if any task fails, with the first failure as its cause
+	 */
+	public void run(int numberOfTasks, Task task) {
+		if (numberOfTasks == 1) {
+			try {
+				task.run(0);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+
+		final Metrics metrics = this.metrics;
+		/* Busy time of the tasks, written by each task into its own slot */
+		final long[] busyNanos = (metrics != null) ? new long[numberOfTasks] : null;
+		List<Callable<Void>> callables = new ArrayList<>(numberOfTasks);
+
+		for (int i = 0; i < numberOfTasks; i++) {
+			final int taskIndex = i;
+			callables.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if (busyNanos == null) {
+						task.run(taskIndex);
+						return null;
+					}
+
+					final long start = System.nanoTime();
+
+					try {
+						task.run(taskIndex);
+					} finally {
+						busyNanos[taskIndex] = System.nanoTime() - start;
+					}
+					return null;
+				}
+			});
+		}
+
+		try {
+			final long start = (metrics != null) ? System.nanoTime() : 0;
+
+			for (final Future<Void> future : executor.invokeAll(callables))
+				future.get();
+
+			if (metrics != null) {
+				/* Threads that ran tasks for the whole run, minus the time they were busy */
+				long idleNanos = Math.min(parallelism, numberOfTasks) * (System.nanoTime() - start);
+
+				for (int i = 0; i < numberOfTasks; i++)
+					idleNanos -= busyNanos[i];
+				metrics.record(Metrics.Phase.IDLE, Math.max(idleNanos, 0));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public void shutdown() {
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+}
@@ -1,29 +1,101 @@
 package zyh.ml.utils;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class TaskDispatcher {
 
-	private List<Integer> begins = new ArrayList<>();
+	private int[] begins;
+
+	private int[] ends;
 
-	private List<Integer> ends = new ArrayList<>();
+	private TaskDispatcher(int numberOfChunks) {
+		begins = new int[numberOfChunks];
+		ends = new int[numberOfChunks];
+	}
 
+	/**
+	 * Split the tasks into contiguous ranges with the same number of tasks
+	 */
 	public TaskDispatcher(int numberOfTasks, int numberOfWorkers) {
+		this(numberOfWorkers);
+
 		int tasksPerWorker = numberOfTasks / numberOfWorkers;
 		int extraTasks = numberOfTasks % numberOfWorkers;
 
 		for (int i = 0; i < numberOfWorkers; i++) {
-			begins.add(i * tasksPerWorker + Math.min(extraTasks, i));
-			ends.add(begins.get(i) + tasksPerWorker);
+			begins[i] = i * tasksPerWorker + Math.min(extraTasks, i);
+			ends[i] = begins[i] + tasksPerWorker + ((i < extraTasks) ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Cumulative costs of the tasks, task <i>i</i> costs <code>offset(i + 1) - offset(i)</code>
+	 */
+	public interface Costs {
+		public long offset(int task);
+	}
+
+	/**
+	 * Split the tasks into contiguous ranges with about the same total cost, e.g. the number
+	 * of non-zero features when the tasks are rows of a sparse dataset. Use more chunks than
+	 * workers so that idle workers can pick up the remaining chunks.
+	 * @param costOffsets cumulative costs, task <i>i</i> costs <code>costOffsets[i + 1] - costOffsets[i]</code>
+	 * @param numberOfChunks number of ranges to split the tasks into
+	 */
+	public static TaskDispatcher balanced(int[] costOffsets, int numberOfChunks) {
+		return balanced(costOffsets.length - 1, new Costs() {
+			@Override
+			public long offset(int task) {
+				return costOffsets[task];
+			}
+		}, numberOfChunks);
+	}
+
+	public static TaskDispatcher balanced(int numberOfTasks, Costs costs, int numberOfChunks) {
+		TaskDispatcher dispatcher = new TaskDispatcher(numberOfChunks);
+		final long firstCost = costs.offset(0);
+		final long totalCost = costs.offset(numberOfTasks) - firstCost;
+		int begin = 0;
+
+		for (int i = 0; i < numberOfChunks; i++) {
+			int end = numberOfTasks;
+
+			if (i < numberOfChunks - 1) {
+				final long target = firstCost + totalCost * (i + 1) / numberOfChunks;
+
+				end = lowerBound(costs, begin, numberOfTasks, target);
+			}
+
+			dispatcher.begins[i] = begin;
+			dispatcher.ends[i] = end;
+			begin = end;
 		}
+
+		return dispatcher;
+	}
+
+	/**
+	 * @return the first index in [from, to] whose offset is not less than the target
+	 */
+	private static int lowerBound(Costs costs, int from, int to, long target) {
+		while (from < to) {
+			final int middle = (from + to) >>> 1;
+
+			if (costs.offset(middle) < target)
+				from = middle + 1;
+			else
+				to = middle;
+		}
+		return from;
+	}
+
+	public int size() {
+		return begins.length;
 	}
 
 	public int begin(int workerIndex) {
-		return begins.get(workerIndex);
+		return begins[workerIndex];
 	}
 
 	public int end(int workerIndex) {
-		return ends.get(workerIndex);
+		return ends[workerIndex];
 	}
 }
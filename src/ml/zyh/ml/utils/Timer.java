@@ -1,21 +1,33 @@
 package zyh.ml.utils;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Timer {
 
-	private List<Long> timeStamps = new ArrayList<>();
+	/* The last two ticks, by System.nanoTime */
+	private long previousTick = 0;
+
+	private long lastTick = 0;
+
+	private int ticks = 0;
 
 	public void tick() {
-		timeStamps.add(System.currentTimeMillis());
+		previousTick = lastTick;
+		lastTick = System.nanoTime();
+		if (ticks < 2)
+			ticks++;
 	}
 
+	/**
+	 * @return milliseconds between the last two ticks
+	 */
 	public long duration() {
-		if (timeStamps.size() < 2)
+		return durationNanos() / 1000000;
+	}
+
+	public long durationNanos() {
+		if (ticks < 2)
 			return 0;
 		else
-			return timeStamps.get(timeStamps.size() - 1) - timeStamps.get(timeStamps.size() - 2);
+			return lastTick - previousTick;
 	}
 
 }
@@ -0,0 +1,147 @@
+package zyh.ml.utils;
+
+/**
+ * Dense BLAS level 1 kernels over <code>double[]</code>. The kernels use the Java Vector API when
+ * <code>zyh.ml.utils.VectorizedKernels</code> (source root <i>src/vector</i>) is on the class path and
+ * the JVM runs with <code>--add-modules jdk.incubator.vector</code>, otherwise a scalar implementation
+ * unrolled for the JIT compiler. Set the system property <code>zyh.ml.vectorMath=scalar</code> to
+ * force the scalar implementation.
+ * <p>
+ * All vectors passed to one call must have the same length.
+ */
+public final class VectorMath {
+
+	interface Kernels {
+		double dot(double[] x, double[] y, int length);
+
+		void axpy(double a, double[] x, double[] y, double[] result, int length);
+
+		void scale(double a, double[] x, int length);
+
+		double axpyDot(double a, double[] x, double[] y, double[] z, int length);
+	}
+
+	private static final Kernels KERNELS = loadKernels();
+
+	private VectorMath() {
+	}
+
+	private static Kernels loadKernels() {
+		if (!"scalar".equals(System.getProperty("zyh.ml.vectorMath"))) {
+			try {
+				return (Kernels) Class.forName("zyh.ml.utils.VectorizedKernels").getDeclaredConstructor().newInstance();
+			} catch (Exception | LinkageError e) {
+				/* Vector API is not available */
+			}
+		}
+		return new ScalarKernels();
+	}
+
+	/**
+	 * @return name of the implementation in use
+	 */
+	public static String implementation() {
+		return KERNELS.getClass().getSimpleName();
+	}
+
+	/**
+	 * @return <i>x' * y</i>
+	 */
+	public static double dot(double[] x, double[] y) {
+		return KERNELS.dot(x, y, x.length);
+	}
+
+	/**
+	 * <i>y = a * x + y</i>
+	 */
+	public static void axpy(double a, double[] x, double[] y) {
+		KERNELS.axpy(a, x, y, y, x.length);
+	}
+
+	/**
+	 * <i>result = a * x + y</i>, the result may be the same array as x or y
+	 */
+	public static void axpy(double a, double[] x, double[] y, double[] result) {
+		KERNELS.axpy(a, x, y, result, x.length);
+	}
+
+	/**
+	 * <i>x = a * x</i>
+	 */
+	public static void scale(double a, double[] x) {
+		KERNELS.scale(a, x, x.length);
+	}
+
+	/**
+	 * <i>y = a * x + y</i> followed by <i>z' * y</i> in the same pass, z may be the same array as y
+	 * @return <i>z' * y</i> with the updated y
+	 */
+	public static double axpyDot(double a, double[] x, double[] y, double[] z) {
+		return KERNELS.axpyDot(a, x, y, z, x.length);
+	}
+
+	/**
+	 * Unrolled with independent accumulators, so the additions are not serialized on one register
+	 */
+	static class ScalarKernels implements Kernels {
+
+		@Override
+		public double dot(double[] x, double[] y, int length) {
+			double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+			final int bound = length & ~3;
+			int i = 0;
+
+			for (; i < bound; i += 4) {
+				sum0 += x[i] * y[i];
+				sum1 += x[i + 1] * y[i + 1];
+				sum2 += x[i + 2] * y[i + 2];
+				sum3 += x[i + 3] * y[i + 3];
+			}
+			for (; i < length; i++)
+				sum0 += x[i] * y[i];
+
+			return (sum0 + sum1) + (sum2 + sum3);
+		}
+
+		@Override
+		public void axpy(double a, double[] x, double[] y, double[] result, int length) {
+			for (int i = 0; i < length; i++)
+				result[i] = a * x[i] + y[i];
+		}
+
+		@Override
+		public void scale(double a, double[] x, int length) {
+			for (int i = 0; i < length; i++)
+				x[i] *= a;
+		}
+
+		@Override
+		public double axpyDot(double a, double[] x, double[] y, double[] z, int length) {
+			double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+			final int bound = length & ~3;
+			int i = 0;
+
+			for (; i < bound; i += 4) {
+				final double y0 = a * x[i] + y[i];
+				final double y1 = a * x[i + 1] + y[i + 1];
+				final double y2 = a * x[i + 2] + y[i + 2];
+				final double y3 = a * x[i + 3] + y[i + 3];
+
+				y[i] = y0;
+				y[i + 1] = y1;
+				y[i + 2] = y2;
+				y[i + 3] = y3;
+				sum0 += z[i] * y0;
+				sum1 += z[i + 1] * y1;
+				sum2 += z[i + 2] * y2;
+				sum3 += z[i + 3] * y3;
+			}
+			for (; i < length; i++) {
+				y[i] = a * x[i] + y[i];
+				sum0 += z[i] * y[i];
+			}
+
+			return (sum0 + sum1) + (sum2 + sum3);
+		}
+	}
+}
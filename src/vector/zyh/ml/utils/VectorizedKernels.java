@@ -0,0 +1,93 @@
+package zyh.ml.utils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link VectorMath} kernels on the Java Vector API, loaded by reflection so the rest of the
+ * library still runs on Java 8. Requires JDK 16 or later, compile and run with
+ * <code>--add-modules jdk.incubator.vector</code>.
+ */
+class VectorizedKernels implements VectorMath.Kernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	public VectorizedKernels() {
+		/* Without SIMD registers the Vector API is slower than the scalar loops */
+		if (SPECIES.length() < 2)
+			throw new UnsupportedOperationException("No SIMD support for double.");
+	}
+
+	@Override
+	public double dot(double[] x, double[] y, int length) {
+		final int step = SPECIES.length();
+		final int bound = SPECIES.loopBound(length);
+		DoubleVector sum0 = DoubleVector.zero(SPECIES);
+		DoubleVector sum1 = DoubleVector.zero(SPECIES);
+		int i = 0;
+
+		for (; i + step < bound; i += 2 * step) {
+			sum0 = sum0.add(DoubleVector.fromArray(SPECIES, x, i).mul(DoubleVector.fromArray(SPECIES, y, i)));
+			sum1 = sum1.add(DoubleVector.fromArray(SPECIES, x, i + step)
+					.mul(DoubleVector.fromArray(SPECIES, y, i + step)));
+		}
+		for (; i < bound; i += step)
+			sum0 = sum0.add(DoubleVector.fromArray(SPECIES, x, i).mul(DoubleVector.fromArray(SPECIES, y, i)));
+
+		double sum = sum0.add(sum1).reduceLanes(VectorOperators.ADD);
+
+		for (; i < length; i++)
+			sum += x[i] * y[i];
+
+		return sum;
+	}
+
+	@Override
+	public void axpy(double a, double[] x, double[] y, double[] result, int length) {
+		final int bound = SPECIES.loopBound(length);
+		int i = 0;
+
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, x, i).mul(a).add(DoubleVector.fromArray(SPECIES, y, i))
+					.intoArray(result, i);
+		}
+		for (; i < length; i++)
+			result[i] = a * x[i] + y[i];
+	}
+
+	@Override
+	public void scale(double a, double[] x, int length) {
+		final int bound = SPECIES.loopBound(length);
+		int i = 0;
+
+		for (; i < bound; i += SPECIES.length())
+			DoubleVector.fromArray(SPECIES, x, i).mul(a).intoArray(x, i);
+		for (; i < length; i++)
+			x[i] *= a;
+	}
+
+	@Override
+	public double axpyDot(double a, double[] x, double[] y, double[] z, int length) {
+		final int bound = SPECIES.loopBound(length);
+		DoubleVector sum = DoubleVector.zero(SPECIES);
+		int i = 0;
+
+		for (; i < bound; i += SPECIES.length()) {
+			final DoubleVector updated = DoubleVector.fromArray(SPECIES, x, i).mul(a)
+					.add(DoubleVector.fromArray(SPECIES, y, i));
+
+			updated.intoArray(y, i);
+			sum = sum.add(DoubleVector.fromArray(SPECIES, z, i).mul(updated));
+		}
+
+		double result = sum.reduceLanes(VectorOperators.ADD);
+
+		for (; i < length; i++) {
+			y[i] = a * x[i] + y[i];
+			result += z[i] * y[i];
+		}
+
+		return result;
+	}
+}